@@ -21,52 +21,75 @@ import static java.util.Collections.unmodifiableSet;
 import static java.util.stream.Collectors.toUnmodifiableSet;
 import static picocli.CommandLine.Help.Ansi.AUTO;
 import static picocli.CommandLine.Help.Visibility.ALWAYS;
+import static picocli.CommandLine.Spec.Target.MIXEE;
 import static zajc.gogarchiver.api.GameDownload.Type.*;
 
-import java.io.IOException;
+import java.io.*;
+import java.net.URI;
 import java.nio.file.*;
 import java.util.*;
 import java.util.function.Predicate;
 
-import javax.annotation.Nonnull;
+import javax.annotation.*;
 
 import org.eu.zajc.ef.supplier.except.all.AESupplier;
 
 import picocli.CommandLine.*;
 import picocli.CommandLine.Help.Ansi;
+import picocli.CommandLine.Model.CommandSpec;
 import zajc.gogarchiver.api.*;
 import zajc.gogarchiver.api.GameDownload.Platform;
 import zajc.gogarchiver.exception.NotLoggedInException;
+import zajc.gogarchiver.output.*;
 import zajc.gogarchiver.util.LazyValue;
 
 public class Arguments {
 
-	private final LazyValue<User> user = new LazyValue<>();
+	private static final int AUTO_THREADS = 0;
+	private static final long AUTO_SIZE = 0;
 
-	@ArgGroup(exclusive = true, multiplicity = "1") private Token token;
+	private final LazyValue<List<User>> users = new LazyValue<>();
+	private final LazyValue<OutputBackend> outputBackend = new LazyValue<>();
 
-	private static class Token {
+	@Spec(MIXEE) private CommandSpec spec;
 
-		@Option(names = { "-k", "--token" }, description = "GOG token, which can be extracted from the gog-al cookie",
-				paramLabel = "TOKEN") private String tokenString;
-		@Option(names = { "-K", "--token-file" }, description = "read GOG token from a file",
-				paramLabel = "PATH") private Path tokenFile;
+	@ArgGroup(exclusive = false, multiplicity = "1") private Tokens tokens;
+
+	private static class Tokens {
+
+		@Option(names = { "-k", "--token" }, description = """
+			GOG token, which can be extracted from the gog-al cookie. Can be repeated to archive multiple accounts""",
+				paramLabel = "TOKEN") private List<String> tokenStrings = new ArrayList<>();
+		@Option(names = { "-K", "--token-file" }, description = "read GOG token from a file. Can be repeated",
+				paramLabel = "PATH") private List<Path> tokenFiles = new ArrayList<>();
 
 		@Nonnull
 		@SuppressWarnings("null")
-		public String getTokenString() throws IOException {
-			var token = this.tokenString;
-			if (token == null)
-				token = Files.readString(this.tokenFile);
-			return token.strip();
+		public List<String> getTokenStrings() throws IOException {
+			var tokens = new ArrayList<String>();
+			for (var token : this.tokenStrings)
+				tokens.add(token.strip());
+			for (var tokenFile : this.tokenFiles)
+				tokens.add(Files.readString(tokenFile).strip());
+			return tokens;
 		}
 
 	}
 
-	@Option(names = { "-o", "--output" }, required = true, description = "directory to write downloaded games to",
-			paramLabel = "PATH") private Path output;
-	@Option(names = { "-t", "--threads" }, description = "number of download threads", paramLabel = "THREADS",
-			showDefaultValue = ALWAYS) private int threads = getRuntime().availableProcessors();
+	@Option(names = { "-o", "--output" }, description = """
+		directory to write downloaded games to. Only needed for library snapshots and throughput history with \
+		--s3-endpoint""", paramLabel = "PATH") private Path output;
+	@Option(names = { "-t", "--threads" }, description = """
+		number of download threads, or auto to adjust it to the measured throughput""", paramLabel = "THREADS",
+			showDefaultValue = ALWAYS, converter = ThreadsConverter.class) private int threads =
+				getRuntime().availableProcessors();
+	@Option(names = { "--extras-threads" }, description = """
+		number of threads for extras, which are downloaded separately from and in addition to --threads""",
+			paramLabel = "THREADS", showDefaultValue = ALWAYS) private int extrasThreads = 16;
+	@Option(names = { "--per-host-threads" }, description = """
+		maximum number of downloads from the same CDN host at once, or 0 for no limit""", paramLabel = "THREADS",
+			showDefaultValue = ALWAYS) private int perHostThreads = 0;
+	@Option(names = { "--dry-run" }, description = "only list what would be downloaded") private boolean dryRun = false;
 	@Option(names = { "-q", "--quiet" }, description = "disable progress bars") private boolean quiet = false;
 	@Option(names = { "-c", "--color" }, description = "control output color. Supported are auto, on, off",
 			paramLabel = "MODE") private Ansi color = AUTO;
@@ -79,6 +102,8 @@ public class Arguments {
 				showDefaultValue = ALWAYS) private boolean installers = true;
 		@Option(names = { "--no-patches" }, description = "download version patches", negatable = true,
 				showDefaultValue = ALWAYS) private boolean patches = true;
+		@Option(names = { "--extras" }, description = "download extras, such as manuals and soundtracks",
+				negatable = true, showDefaultValue = ALWAYS) private boolean extras = false;
 		@Option(names = { "--no-dlcs" }, description = "download available DLCs", negatable = true,
 				showDefaultValue = ALWAYS) private boolean dlcs = true;
 
@@ -135,6 +160,41 @@ public class Arguments {
 
 	}
 
+	@ArgGroup(validate = false, heading = "%nS3 output options%n") private S3Options s3 = new S3Options();
+
+	private static class S3Options {
+
+		@Option(names = { "--s3-endpoint" }, description = """
+			upload downloads straight to this S3-compatible endpoint instead of the output directory. Credentials are \
+			read from the AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY environment variables""",
+				paramLabel = "URL") private URI endpoint;
+		@Option(names = { "--s3-bucket" }, description = "bucket to upload to", paramLabel = "BUCKET") private String bucket;
+		@Option(names = { "--s3-prefix" }, description = "key prefix to upload under",
+				paramLabel = "PREFIX") private String prefix = "";
+		@Option(names = { "--s3-region" }, description = "region to sign requests for", paramLabel = "REGION",
+				showDefaultValue = ALWAYS) private String region = "us-east-1";
+		@Option(names = { "--s3-parts-in-flight" }, description = "number of parts to upload at once per download",
+				paramLabel = "PARTS", showDefaultValue = ALWAYS) private int partsInFlight = 4;
+
+	}
+
+	@ArgGroup(validate = false, heading = "%nStaging options%n") private StagingOptions staging = new StagingOptions();
+
+	private static class StagingOptions {
+
+		@Option(names = { "--staging-dir" }, description = """
+			download to this (faster) directory first, and move finished downloads to the output directory in the \
+			background""", paramLabel = "PATH") private Path directory;
+		@Option(names = { "--staging-limit" }, description = """
+			how much space downloads can take up in the staging directory before they wait for it to be freed, or \
+			auto for 90% of its free space""", paramLabel = "SIZE", showDefaultValue = ALWAYS, defaultValue = "auto",
+				converter = SizeConverter.class) private long limit;
+		@Option(names = { "--migration-threads" }, description = """
+			number of threads moving downloads from the staging directory""", paramLabel = "THREADS",
+				showDefaultValue = ALWAYS) private int migrationThreads = 1;
+
+	}
+
 	@ArgGroup(validate = false, heading = "%nAdvanced options%n") private AdvancedOptions advanced =
 		new AdvancedOptions();
 
@@ -142,21 +202,108 @@ public class Arguments {
 
 		@Option(names = { "-v", "--verbose" }, description = "display verbose log messages") private boolean verbose =
 			false;
+		@Option(names = { "--mirror" }, description = """
+			URL of a gogarchiver-ng serve instance to download from before falling back to GOG""",
+				paramLabel = "URL") private URI mirror;
+		@Option(names = { "--log-json" }, description = "also append all log messages to a JSON-lines file",
+				paramLabel = "PATH") private Path jsonLog;
+		@Option(names = { "--record-trace" }, description = """
+			record metadata and redirect requests with their timings to a trace file""",
+				paramLabel = "PATH") private Path recordTrace;
+		@Option(names = { "--replay-trace" }, description = """
+			answer metadata and redirect requests from a recorded trace file, with the recorded latencies""",
+				paramLabel = "PATH") private Path replayTrace;
+
+		@Option(names = { "--full-refresh" }, description = """
+			fetch every game's details again instead of only the ones due for a refresh""") private boolean fullRefresh =
+				false;
 
 		@Option(names = { "--unknown-types" }, description = "download unknown download types", negatable = true,
 				showDefaultValue = ALWAYS) private boolean unknown = false;
 
+		@Option(names = { "--min-threads" }, description = "lower bound of download threads with --threads auto",
+				paramLabel = "THREADS", showDefaultValue = ALWAYS) private int minThreads = 1;
+		@Option(names = { "--max-threads" }, description = "upper bound of download threads with --threads auto",
+				paramLabel = "THREADS", showDefaultValue = ALWAYS) private int maxThreads = 32;
+
+	}
+
+	private static class ThreadsConverter implements ITypeConverter<Integer> {
+
+		@Override
+		public Integer convert(String value) {
+			if (value.equalsIgnoreCase("auto"))
+				return AUTO_THREADS;
+
+			int threads;
+			try {
+				threads = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				throw new TypeConversionException("'%s' is not a number or auto".formatted(value));
+			}
+
+			if (threads < 1)
+				throw new TypeConversionException("thread count must be positive");
+			return threads;
+		}
+
+	}
+
+	private static class SizeConverter implements ITypeConverter<Long> {
+
+		@Override
+		public Long convert(String value) {
+			if (value.equalsIgnoreCase("auto"))
+				return AUTO_SIZE;
+
+			var unit = value.isEmpty() ? -1 : "KMGT".indexOf(Character.toUpperCase(value.charAt(value.length() - 1)));
+			var number = unit == -1 ? value : value.substring(0, value.length() - 1);
+			long size;
+			try {
+				size = (long) (Double.parseDouble(number) * (1L << (unit + 1) * 10));
+			} catch (NumberFormatException e) {
+				throw new TypeConversionException("'%s' is not a size (eg. 500G) or auto".formatted(value));
+			}
+
+			if (size < 1)
+				throw new TypeConversionException("size must be positive");
+			return size;
+		}
+
 	}
 
 	@Nonnull
 	@SuppressWarnings({ "unused", "null" })
-	public User getUser() throws IOException, NotLoggedInException {
-		return this.user.get((AESupplier<User>) () -> new User(this.token.getTokenString()));
+	public List<User> getUsers() throws IOException, NotLoggedInException {
+		return this.users.get((AESupplier<List<User>>) () -> {
+			var users = new ArrayList<User>();
+			var trace = getTrace();
+			// with a trace, every game's details have to be requested so replays make exactly the recorded requests,
+			// and replayed (possibly old) details mustn't end up in the archive's snapshot
+			var snapshot = this.output == null || trace != null ? null :
+				new LibrarySnapshot(this.output.resolve(LibrarySnapshot.DIRECTORY), this.advanced.fullRefresh,
+									this.dryRun);
+			for (var token : this.tokens.getTokenStrings())
+				users.add(new User(token, this.advanced.mirror, snapshot, trace));
+			return List.copyOf(users);
+		});
+	}
+
+	@Nullable
+	private HttpTrace getTrace() throws IOException {
+		if (this.advanced.recordTrace != null && this.advanced.replayTrace != null)
+			throw new ParameterException(this.spec.commandLine(), "--record-trace and --replay-trace are exclusive");
+		else if (this.advanced.recordTrace != null)
+			return HttpTrace.record(this.advanced.recordTrace);
+		else if (this.advanced.replayTrace != null)
+			return HttpTrace.replay(this.advanced.replayTrace);
+		else
+			return null;
 	}
 
 	@Nonnull
-	public Set<String> getGameIds() throws IOException, NotLoggedInException {
-		return this.filters.gameIds.getGameIds(getUser());
+	public Set<String> getGameIds(@Nonnull User user) {
+		return this.filters.gameIds.getGameIds(user);
 	}
 
 	@Nonnull
@@ -169,10 +316,108 @@ public class Arguments {
 		return this.threads;
 	}
 
+	public int getExtrasThreads() {
+		if (this.extrasThreads < 1)
+			throw new ParameterException(this.spec.commandLine(), "--extras-threads must be positive");
+		return this.extrasThreads;
+	}
+
+	public int getPerHostThreads() {
+		if (this.perHostThreads < 0)
+			throw new ParameterException(this.spec.commandLine(), "--per-host-threads can't be negative");
+		return this.perHostThreads;
+	}
+
+	public boolean isAdaptiveThreads() {
+		return this.threads == AUTO_THREADS;
+	}
+
+	public int getMinThreads() {
+		return this.advanced.minThreads;
+	}
+
+	public int getMaxThreads() {
+		return this.advanced.maxThreads;
+	}
+
+	@Nonnull
 	public Path getOutputPath() {
+		if (this.output == null)
+			throw new ParameterException(this.spec.commandLine(), "Missing required option: '--output=PATH'");
 		return this.output;
 	}
 
+	@Nullable
+	public Path getStatePath() {
+		// where state files (library snapshots, throughput history) go, which output to S3 can do without
+		return this.output;
+	}
+
+	public boolean isMultiAccount() {
+		return this.tokens.tokenStrings.size() + this.tokens.tokenFiles.size() > 1;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public Path getAccountDirectory(@Nonnull User user) {
+		if (isMultiAccount()) // each account gets its own directory when archiving several
+			return Path.of(user.getUsername());
+		else
+			return Path.of("");
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public Path getOutputPath(@Nonnull User user) {
+		return getOutputPath().resolve(getAccountDirectory(user));
+	}
+
+	public boolean isLocalOutput() {
+		return this.s3.endpoint == null;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public OutputBackend getOutputBackend() {
+		return this.outputBackend.get(() -> {
+			if (isLocalOutput() && this.staging.directory != null)
+				return createStagedOutput();
+			else if (isLocalOutput())
+				return new LocalOutput(getOutputPath());
+			else if (this.staging.directory != null)
+				throw new ParameterException(this.spec.commandLine(), "--staging-dir can't be used with --s3-endpoint");
+
+			var accessKey = System.getenv("AWS_ACCESS_KEY_ID");
+			var secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+			if (this.s3.bucket == null)
+				throw new ParameterException(this.spec.commandLine(), "--s3-endpoint requires --s3-bucket");
+			if (accessKey == null || secretKey == null)
+				throw new ParameterException(this.spec.commandLine(), """
+					--s3-endpoint requires the AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY environment variables""");
+
+			return new S3Output(this.s3.endpoint, this.s3.region, this.s3.bucket, this.s3.prefix, accessKey, secretKey,
+								this.s3.partsInFlight);
+		});
+	}
+
+	@Nonnull
+	private OutputBackend createStagedOutput() {
+		if (this.staging.migrationThreads < 1)
+			throw new ParameterException(this.spec.commandLine(), "--migration-threads must be positive");
+
+		var limit = this.staging.limit;
+		if (limit == AUTO_SIZE) {
+			try {
+				Files.createDirectories(this.staging.directory);
+				limit = Files.getFileStore(this.staging.directory).getUsableSpace() / 10 * 9;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		return new StagedOutput(getOutputPath(), this.staging.directory, limit, this.staging.migrationThreads);
+	}
+
 	public Set<Platform> getPlatforms() {
 		return this.filters.platforms.getPlatforms();
 	}
@@ -181,6 +426,11 @@ public class Arguments {
 		return this.filters.dlcs;
 	}
 
+	public boolean isGameFiltered() {
+		// whether games (or DLCs) are left out, rather than just some of their downloads
+		return !this.filters.dlcs || this.filters.gameIds.included != null || this.filters.gameIds.excluded != null;
+	}
+
 	public Set<GameDownload.Type> getTypes() {
 		var types = EnumSet.noneOf(GameDownload.Type.class);
 		if (this.filters.installers)
@@ -189,6 +439,9 @@ public class Arguments {
 		if (this.filters.patches)
 			types.add(PATCH);
 
+		if (this.filters.extras)
+			types.add(EXTRA);
+
 		if (this.advanced.unknown)
 			types.add(UNKNOWN);
 
@@ -199,6 +452,15 @@ public class Arguments {
 		return this.advanced.verbose;
 	}
 
+	public boolean isDryRun() {
+		return this.dryRun;
+	}
+
+	@Nullable
+	public Path getJsonLogPath() {
+		return this.advanced.jsonLog;
+	}
+
 	public boolean isQuiet() {
 		return this.quiet;
 	}
@@ -0,0 +1,290 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver;
+
+import static java.lang.Long.MAX_VALUE;
+import static java.lang.Runtime.getRuntime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static picocli.CommandLine.Help.Visibility.ALWAYS;
+import static zajc.gogarchiver.api.GameDownload.Type.EXTRA;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import javax.annotation.*;
+
+import me.tongfei.progressbar.ProgressBar;
+import picocli.CommandLine.*;
+import zajc.gogarchiver.api.GameDownload;
+import zajc.gogarchiver.api.GameDownload.*;
+
+@Command(name = "audit", description = """
+	verifies downloaded files against GOG's checksums and reports mismatched, missing and orphaned files""",
+		 mixinStandardHelpOptions = true, sortOptions = false)
+public class Audit implements Callable<Integer> {
+
+	static final String STATE_FILE = ".gogarchiver-audit";
+
+	@ParentCommand private Main main;
+
+	@Option(names = { "--hash-threads" }, description = "number of files to hash in parallel", paramLabel = "THREADS",
+			showDefaultValue = ALWAYS) private int hashThreads = getRuntime().availableProcessors();
+	@Option(names = { "--device-threads" }, description = "number of files to hash in parallel on the same device",
+			paramLabel = "THREADS", showDefaultValue = ALWAYS) private int deviceThreads = 2;
+	@Option(names = { "--restart" }, description = "discard results of previous audit runs") private boolean restart =
+		false;
+
+	enum Result {
+		OK,
+		MISMATCH,
+		UNVERIFIABLE;
+	}
+
+	record AuditedFile(@Nonnull Result result, long size, long modified) {
+
+		@Nonnull
+		public String toLine(@Nonnull Path path) {
+			return "%s\t%d\t%d\t%s%n".formatted(this.result, this.size, this.modified, path);
+		}
+
+	}
+
+	@Override
+	public Integer call() throws Exception {
+		return this.main.execute(this::audit);
+	}
+
+	@SuppressWarnings("null")
+	private int audit() throws Exception {
+		if (!this.main.getArguments().isLocalOutput()) {
+			warn("Auditing is only supported for archives in the output directory");
+			return 1;
+		}
+
+		var output = this.main.getArguments().getOutputPath();
+		var stateFile = output.resolve(STATE_FILE);
+		if (this.restart)
+			Files.deleteIfExists(stateFile);
+		var previous = loadState(stateFile);
+
+		var arguments = this.main.getArguments();
+		var expected = new TreeMap<Path, GameDownload>();
+		for (var download : this.main.getDownloadList(false))
+			expected.put(output.relativize(arguments.getOutputPath(download.game().getUser()).resolve(download.path())),
+						 download);
+
+		var missing = new ArrayList<Path>();
+		var results = new ConcurrentSkipListMap<Path, Result>();
+		var pending = new LinkedHashMap<Path, BasicFileAttributes>();
+		for (var path : expected.keySet()) {
+			var file = output.resolve(path);
+			if (!Files.isRegularFile(file)) {
+				missing.add(path);
+				continue;
+			}
+
+			var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			var audited = previous.get(path);
+			if (audited != null && audited.size() == attributes.size()
+				&& audited.modified() == attributes.lastModifiedTime().toMillis())
+				results.put(path, audited.result());
+			else
+				pending.put(path, attributes);
+		}
+
+		if (previous.size() > 0)
+			verbose("Reusing @|bold %d|@ results from previous audit runs", results.size());
+
+		try (var state = Files.newBufferedWriter(stateFile, UTF_8, CREATE, APPEND, WRITE);
+			 var progress = this.main.getArguments().isQuiet() ? null : createAuditProgress(pending.values())) {
+			var devices = new ConcurrentHashMap<FileStore, Semaphore>();
+			var pool = newFixedThreadPool(this.hashThreads);
+			for (var entry : pending.entrySet()) {
+				var path = entry.getKey();
+				var file = output.resolve(path);
+				var device = devices.computeIfAbsent(Files.getFileStore(file), s -> new Semaphore(this.deviceThreads));
+
+				pool.submit(() -> {
+					try {
+						var result = verify(expected.get(path), file, entry.getValue().size(), device);
+						results.put(path, result);
+
+						var line = new AuditedFile(result, entry.getValue().size(),
+												   entry.getValue().lastModifiedTime().toMillis()).toLine(path);
+						synchronized (state) {
+							state.write(line);
+							state.flush(); // so an interrupted audit can resume from here
+						}
+
+					} catch (IOException | RuntimeException e) {
+						warn("Couldn't audit @|bold %s|@: %s", path, e.getMessage());
+
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+
+					} finally {
+						if (progress != null)
+							progress.stepBy(entry.getValue().size());
+					}
+				});
+			}
+
+			pool.shutdown();
+			pool.awaitTermination(MAX_VALUE, NANOSECONDS);
+		}
+
+		List<Path> orphaned;
+		if (arguments.isGameFiltered()) {
+			// files of games that were filtered out can't be told apart from orphaned ones without fetching them
+			verbose("Not looking for orphaned files, as games or DLCs are filtered");
+			orphaned = List.of();
+		} else {
+			orphaned = findOrphans(output, expected.keySet(), arguments.getTypes(), arguments.getPlatforms());
+		}
+		return report(results, missing, orphaned);
+	}
+
+	@Nonnull
+	private static Result verify(@Nonnull GameDownload download, @Nonnull Path file, long size,
+								 @Nonnull Semaphore device) throws IOException, InterruptedException {
+		var checksum = download.checksum();
+		if (checksum == null)
+			return Result.UNVERIFIABLE;
+		else if (checksum.size() != size)
+			return Result.MISMATCH;
+
+		String md5;
+		device.acquire();
+		try (var channel = FileChannel.open(file, READ)) {
+			md5 = md5(channel, 0, size);
+		} finally {
+			device.release();
+		}
+
+		return md5.equals(checksum.md5()) ? Result.OK : Result.MISMATCH;
+	}
+
+	@Nonnull
+	static Map<Path, AuditedFile> loadState(@Nonnull Path stateFile) throws IOException {
+		var state = new HashMap<Path, AuditedFile>();
+		if (!Files.exists(stateFile))
+			return state;
+
+		try (var lines = Files.lines(stateFile, UTF_8)) {
+			lines.map(l -> l.split("\t", 4)).filter(l -> l.length == 4).forEach(l -> { // later lines take precedence
+				try {
+					state.put(Path.of(l[3]),
+							  new AuditedFile(Result.valueOf(l[0]), Long.parseLong(l[1]), Long.parseLong(l[2])));
+				} catch (IllegalArgumentException e) {
+					verbose("Ignoring a malformed audit state line for %s", l[3]);
+				}
+			});
+		}
+
+		return state;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	private static List<Path> findOrphans(@Nonnull Path output, @Nonnull Set<Path> expected, @Nonnull Set<Type> types,
+										  @Nonnull Set<Platform> platforms) throws IOException {
+		try (Stream<Path> files = Files.walk(output)) {
+			return files.filter(Files::isRegularFile)
+				.map(output::relativize)
+				.filter(p -> {
+					for (var part : p) {
+						if (part.toString().startsWith(".")) // our own state and part files
+							return false;
+					}
+					return true;
+				})
+				.filter(p -> !expected.contains(p))
+				.filter(p -> !isFilteredOut(p, types, platforms))
+				.sorted()
+				.toList();
+		}
+	}
+
+	private static boolean isFilteredOut(@Nonnull Path path, @Nonnull Set<Type> types,
+										 @Nonnull Set<Platform> platforms) {
+		// files of downloads left out by type and platform filters are recognized by where GameDownload.path() puts
+		// them (<title>/<platform>/<type>/<file> or <title>/extra/<file>), without resolving their URLs
+		var count = path.getNameCount();
+		if (count < 3)
+			return false;
+
+		var type = parse(Type.class, path.getName(count - 2).toString());
+		if (type == null)
+			return false;
+		else if (!types.contains(type))
+			return true;
+		else if (type == EXTRA || count < 4)
+			return false;
+
+		var platform = parse(Platform.class, path.getName(count - 3).toString());
+		return platform != null && !platforms.contains(platform);
+	}
+
+	@Nullable
+	private static <E extends Enum<E>> E parse(@Nonnull Class<E> type, @Nonnull String name) {
+		try {
+			return Enum.valueOf(type, name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static int report(@Nonnull Map<Path, Result> results, @Nonnull List<Path> missing,
+							  @Nonnull List<Path> orphaned) {
+		var counts = new EnumMap<Result, Integer>(Result.class);
+		results.forEach((path, result) -> {
+			counts.merge(result, 1, Integer::sum);
+			switch (result) {
+				case MISMATCH -> warn("Checksum mismatch: @|bold %s|@", path);
+				case UNVERIFIABLE -> verbose("No checksum available: @|bold %s|@", path);
+				default -> {
+					// nothing to report
+				}
+			}
+		});
+		missing.forEach(p -> warn("Missing: @|bold %s|@", p));
+		orphaned.forEach(p -> warn("Orphaned: @|bold %s|@", p));
+
+		println("Audited @|bold %d|@ files: %d ok, %d mismatched, %d unverifiable, %d missing, %d orphaned".formatted(
+				results.size(), counts.getOrDefault(Result.OK, 0), counts.getOrDefault(Result.MISMATCH, 0),
+				counts.getOrDefault(Result.UNVERIFIABLE, 0), missing.size(), orphaned.size()));
+
+		return counts.containsKey(Result.MISMATCH) || !missing.isEmpty() ? 1 : 0;
+	}
+
+	@Nonnull
+	private ProgressBar createAuditProgress(@Nonnull Collection<BasicFileAttributes> files) {
+		var progress = this.main.downloadProgress("Auditing", 0);
+		progress.maxHint(files.stream().mapToLong(BasicFileAttributes::size).sum());
+		return progress;
+	}
+
+}
@@ -0,0 +1,260 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver;
+
+import static java.lang.Math.min;
+import static java.util.Objects.requireNonNullElse;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import javax.annotation.*;
+
+import zajc.gogarchiver.api.GameDownload;
+import zajc.gogarchiver.api.GameDownload.Type;
+
+public final class DownloadPlan {
+
+	public static final byte PENDING = 0;
+	public static final byte RUNNING = 1;
+	public static final byte DONE = 2;
+	public static final byte FAILED = 3;
+
+	public static final String UNRESOLVED_HOST = "unresolved";
+
+	private static final Path[] NO_PATHS = new Path[0];
+	private static final Type[] TYPES = Type.values();
+
+	public record Copy(@Nonnull Path source, @Nonnull Path target) {}
+
+	// everything is indexed by the position in the plan, so per-download state is a plain array lookup rather than a
+	// hash of the whole GameDownload record. Only what the executor needs is kept: the record itself (which is already
+	// held by its game) for writing it, and primitives or shared strings for the rest. Progress titles are built when
+	// they're needed instead of being kept for every download
+	@Nonnull private final GameDownload[] downloads;
+	@Nonnull private final String[] hosts; // interned, there's only a handful of CDN hosts
+	@Nonnull private final Path[] paths;
+	@Nonnull private final Path[][] duplicates;
+	@Nonnull private final long[] sizes;
+	@Nonnull private final byte[] types;
+	@Nonnull private final byte[] states;
+	@Nonnull private final List<Copy> copies;
+	private final int unplanned;
+
+	private DownloadPlan(@Nonnull GameDownload[] downloads, @Nonnull String[] hosts, @Nonnull Path[] paths,
+						 @Nonnull Path[][] duplicates, @Nonnull long[] sizes, @Nonnull byte[] types,
+						 @Nonnull List<Copy> copies, int unplanned) {
+		this.downloads = downloads;
+		this.hosts = hosts;
+		this.paths = paths;
+		this.duplicates = duplicates;
+		this.sizes = sizes;
+		this.types = types;
+		this.copies = copies;
+		this.unplanned = unplanned;
+		this.states = new byte[downloads.length];
+	}
+
+	public int getCount() {
+		return this.downloads.length;
+	}
+
+	public boolean isEmpty() {
+		return this.downloads.length == 0;
+	}
+
+	@Nonnull
+	public GameDownload getDownload(int index) {
+		return this.downloads[index];
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public List<GameDownload> getDownloads() {
+		return List.of(this.downloads);
+	}
+
+	@Nonnull
+	public String getTitle(int index) {
+		return this.downloads[index].getProgressTitle();
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public Type getType(int index) {
+		return TYPES[this.types[index]];
+	}
+
+	@Nonnull
+	public String getHost(int index) {
+		return this.hosts[index];
+	}
+
+	public void setHost(int index, @Nonnull String host) {
+		this.hosts[index] = host.intern();
+	}
+
+	@Nonnull
+	public Path getPath(int index) {
+		return this.paths[index];
+	}
+
+	@Nonnull
+	public Path[] getDuplicates(int index) {
+		return this.duplicates[index];
+	}
+
+	public long getSize(int index) {
+		return this.sizes[index];
+	}
+
+	public long getTotalSize() {
+		long total = 0;
+		for (var size : this.sizes) {
+			if (size > 0)
+				total += size;
+		}
+		return total;
+	}
+
+	public byte getState(int index) {
+		return this.states[index];
+	}
+
+	public void setState(int index, byte state) {
+		this.states[index] = state;
+	}
+
+	public int countState(byte state) {
+		int count = 0;
+		for (var s : this.states) {
+			if (s == state)
+				count++;
+		}
+		return count;
+	}
+
+	@Nonnull
+	public List<Copy> getCopies() {
+		return this.copies;
+	}
+
+	public int getUnplanned() {
+		// downloads that couldn't be planned at all, for example because their URL couldn't be resolved
+		return this.unplanned;
+	}
+
+	public static final class Builder {
+
+		// title:16 | platform:2 | version:14 | type:2 | part:8 | index:21, which keeps the sign bit clear and lets the
+		// plan order be sorted as plain longs
+		private static final int INDEX_BITS = 21;
+		private static final int MAX_DOWNLOADS = 1 << INDEX_BITS;
+
+		private final List<GameDownload> downloads = new ArrayList<>();
+		private final List<Path> paths = new ArrayList<>();
+		private final List<Path[]> duplicates = new ArrayList<>();
+		private final List<Copy> copies = new ArrayList<>();
+		private int unplanned = 0;
+
+		@Nonnull
+		@SuppressWarnings("null")
+		public Builder add(@Nonnull GameDownload download, @Nonnull Path path, @Nonnull List<Path> duplicates) {
+			if (this.downloads.size() == MAX_DOWNLOADS)
+				throw new IllegalStateException("A plan can't have more than %d downloads".formatted(MAX_DOWNLOADS));
+
+			this.downloads.add(download);
+			this.paths.add(path);
+			this.duplicates.add(duplicates.isEmpty() ? NO_PATHS : duplicates.toArray(Path[]::new));
+			return this;
+		}
+
+		@Nonnull
+		public Builder addUnplanned() {
+			this.unplanned++;
+			return this;
+		}
+
+		@Nonnull
+		public Builder addCopy(@Nonnull Path source, @Nonnull Path target) {
+			this.copies.add(new Copy(source, target));
+			return this;
+		}
+
+		@Nonnull
+		@SuppressWarnings("null")
+		public DownloadPlan build() {
+			var n = this.downloads.size();
+
+			// titles and versions repeat across every part of every platform, so they're ranked once instead of being
+			// compared as strings for each pair the sort looks at
+			var titleRanks = rank(this.downloads.stream().map(d -> d.game().getTitle()));
+			var versionRanks = rank(this.downloads.stream().map(d -> requireNonNullElse(d.version(), "")));
+
+			var keys = new long[n];
+			for (int i = 0; i < n; i++) {
+				var d = this.downloads.get(i);
+				var platform = d.platform() == null ? 0 : d.platform().ordinal() + 1; // extras first
+				keys[i] = sortKey(titleRanks.get(d.game().getTitle()), platform,
+								  versionRanks.get(requireNonNullElse(d.version(), "")), d.type().ordinal(), d.part(),
+								  i);
+			}
+			Arrays.sort(keys);
+
+			var sortedDownloads = new GameDownload[n];
+			var sortedHosts = new String[n];
+			var sortedPaths = new Path[n];
+			var sortedDuplicates = new Path[n][];
+			var sortedSizes = new long[n];
+			var sortedTypes = new byte[n];
+			for (int i = 0; i < n; i++) {
+				var j = (int) (keys[i] & MAX_DOWNLOADS - 1);
+				var download = this.downloads.get(j);
+				sortedDownloads[i] = download;
+				// the CDN host each download was redirected to while planning, if it was, which is shared by many
+				// downloads. Nothing is resolved here, the host is corrected once the download actually starts
+				sortedHosts[i] = requireNonNullElse(download.knownHost(), UNRESOLVED_HOST).intern();
+				sortedPaths[i] = this.paths.get(j);
+				sortedDuplicates[i] = this.duplicates.get(j);
+				sortedSizes[i] = download.size();
+				sortedTypes[i] = (byte) download.type().ordinal();
+			}
+
+			return new DownloadPlan(sortedDownloads, sortedHosts, sortedPaths, sortedDuplicates, sortedSizes,
+									sortedTypes, List.copyOf(this.copies), this.unplanned);
+		}
+
+		@Nonnull
+		private static Map<String, Integer> rank(@Nonnull Stream<String> values) {
+			var distinct = values.distinct().sorted().toList();
+			var ranks = new HashMap<String, Integer>(distinct.size() * 2);
+			for (int i = 0; i < distinct.size(); i++)
+				ranks.put(distinct.get(i), i);
+			return ranks;
+		}
+
+		private static long sortKey(int title, int platform, int version, int type, int part, int index) {
+			// fields that overflow are clamped, which only loses ordering between the outliers
+			return (long) min(title, (1 << 16) - 1) << 47 | (long) platform << 45 |
+				   (long) min(version, (1 << 14) - 1) << 31 | (long) type << 29 |
+				   (long) min(part, (1 << 8) - 1) << INDEX_BITS | index;
+		}
+
+	}
+
+}
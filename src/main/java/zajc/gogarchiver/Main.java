@@ -17,21 +17,28 @@
 package zajc.gogarchiver;
 
 import static java.lang.Long.MAX_VALUE;
-import static java.lang.Math.max;
+import static java.lang.Math.*;
 import static java.lang.System.*;
 import static java.nio.file.Files.createDirectories;
 import static java.util.Objects.requireNonNullElse;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
-import static java.util.stream.Collectors.toUnmodifiableSet;
+import static java.util.function.Predicate.not;
+import static java.util.stream.Collectors.*;
 import static java.util.stream.Stream.concat;
 import static me.tongfei.progressbar.ProgressBarStyle.*;
 import static picocli.CommandLine.Help.Ansi.OFF;
+import static zajc.gogarchiver.DownloadPlan.UNRESOLVED_HOST;
+import static zajc.gogarchiver.api.GameDownload.Type.EXTRA;
 import static zajc.gogarchiver.util.Utilities.*;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Path;
+import java.time.LocalTime;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
 import java.util.stream.Stream;
 
 import javax.annotation.*;
@@ -44,97 +51,321 @@ import picocli.CommandLine.*;
 import sun.misc.Signal; // NOSONAR it's just quality of life
 import zajc.gogarchiver.api.*;
 import zajc.gogarchiver.exception.NotLoggedInException;
+import zajc.gogarchiver.output.OutputBackend;
+import zajc.gogarchiver.util.*;
 
 @Command(name = "gogarchiver", description = "an archival tool for GOG.com", version = "gogarchiver 1.0",
-		 mixinStandardHelpOptions = true, sortSynopsis = false, sortOptions = false)
+		 mixinStandardHelpOptions = true, sortSynopsis = false, sortOptions = false, subcommands = { Audit.class, Repair.class, Serve.class })
 public class Main implements Callable<Integer> {
 
 	@Mixin private Arguments arguments;
 
-	private void run() throws Exception {
-		createDirectories(this.arguments.getOutputPath());
-		var downloads = getDownloadList();
-		if (downloads.isEmpty()) {
-			if (!this.arguments.isQuiet())
-				out.println("\u001b[2KNothing to do");
+	private record SharedKey(@Nonnull String url, @Nullable String version) {
 
-		} else {
-			executeDownloads(downloads);
+		@Nonnull
+		public static SharedKey of(@Nonnull GameDownload download) {
+			return new SharedKey(download.originalUrl(), download.version());
+		}
 
-			if (!this.arguments.isQuiet())
+	}
+
+	private record Target(@Nonnull GameDownload download, @Nullable Path path, boolean exists) {}
+
+	private record Prediction(long bytes, int concurrency, long nanos) {}
+
+	private int run() throws Exception {
+		var state = this.arguments.getStatePath();
+		if (state != null)
+			createDirectories(state);
+		try (var backend = this.arguments.getOutputBackend()) {
+			var start = nanoTime();
+			var plan = getDownloadPlan(true);
+			var history = loadThroughputHistory();
+			var prediction = predict(plan, history);
+			Log.flush(); // the log (and its cursor movement) is written in the background, stdout has to come after it
+			if (this.arguments.isDryRun()) {
+				printPlan(plan, nanoTime() - start, prediction);
+				return 0;
+			}
+
+			backend.resume();
+			placeCopies(plan, backend);
+			Log.flush();
+			if (plan.isEmpty()) {
+				if (!this.arguments.isQuiet())
+					out.println("\u001b[2KNothing to do");
+
+			} else {
+				if (!this.arguments.isQuiet() && prediction.nanos() > 0)
+					out.printf("\u001b[2K%s to download at %d threads, %s%n", formatSize(prediction.bytes()),
+							   prediction.concurrency(), Forecast.describe(prediction.nanos()));
+				executeDownloads(plan, backend, history, prediction);
+			}
+
+			var failed = plan.countState(DownloadPlan.FAILED);
+			var unfinished = backend.finish();
+			if (failed > 0)
+				warn("%d of %d downloads failed", failed, plan.getCount());
+			if (unfinished > 0)
+				warn("%d downloads couldn't be moved to the archive", unfinished);
+			if (failed == 0 && unfinished == 0 && !plan.isEmpty() && !this.arguments.isQuiet()) {
+				Log.flush();
 				out.println("Done");
+			}
+
+			// downloads that couldn't be resolved were already warned about while planning
+			return failed > 0 || unfinished > 0 || plan.getUnplanned() > 0 ? 1 : 0;
+		}
+	}
+
+	@Nullable
+	private ThroughputHistory loadThroughputHistory() {
+		var state = this.arguments.getStatePath();
+		if (state == null)
+			return null;
+
+		try {
+			return ThroughputHistory.load(state.resolve(ThroughputHistory.FILE));
+		} catch (IOException e) {
+			warn("Couldn't load the throughput history, run time won't be predicted: %s", e.getMessage());
+			return null;
+		}
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	private Prediction predict(@Nonnull DownloadPlan plan, @Nullable ThroughputHistory history) {
+		// only the main lane is predicted, extras are small and run alongside it
+		var bytesByHost = new HashMap<String, Long>();
+		var downloads = 0;
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (plan.getType(i) == EXTRA)
+				continue;
+
+			downloads++;
+			if (plan.getSize(i) > 0)
+				bytesByHost.merge(plan.getHost(i), plan.getSize(i), Long::sum);
+		}
+
+		var bytes = bytesByHost.values().stream().mapToLong(Long::longValue).sum();
+		if (history == null || bytes == 0)
+			return new Prediction(bytes, 0, -1);
+
+		var concurrency = this.arguments.isAdaptiveThreads() ?
+			history.getBestConcurrency(this.arguments.getMinThreads(), this.arguments.getMaxThreads()) :
+			this.arguments.getThreads();
+		concurrency = max(1, min(concurrency, downloads));
+		return new Prediction(bytes, concurrency, history.predict(bytesByHost, concurrency, LocalTime.now().getHour()));
+	}
+
+	private static void printPlan(@Nonnull DownloadPlan plan, long planningTime, @Nonnull Prediction prediction) {
+		for (int i = 0; i < plan.getCount(); i++)
+			out.printf("%s\t%s\t%s%n", plan.getTitle(i), plan.getPath(i), formatSize(plan.getSize(i)));
+
+		for (var copy : plan.getCopies())
+			out.printf("copy of %s\t%s%n", copy.source(), copy.target());
+
+		out.printf("%d downloads (about %s) and %d copies, planned in %d ms%n", plan.getCount(),
+				   formatSize(plan.getTotalSize()), plan.getCopies().size(), NANOSECONDS.toMillis(planningTime));
+		if (prediction.nanos() > 0)
+			out.printf("Predicted at %d threads: %s%n", prediction.concurrency(), Forecast.describe(prediction.nanos()));
+		else if (prediction.bytes() > 0)
+			out.println("No throughput history to predict the run time from");
+	}
+
+	private static void placeCopies(@Nonnull DownloadPlan plan, @Nonnull OutputBackend backend) throws IOException {
+		for (var copy : plan.getCopies()) {
+			verbose("Placing @|bold %s|@ from another account's archive", copy.target());
+			backend.place(copy.source(), copy.target());
 		}
 	}
 
 	@SuppressWarnings({ "resource", "null" })
-	private void executeDownloads(@Nonnull List<GameDownload> downloads) throws InterruptedException {
-		var progressTitleWidth =
-			downloads.stream().map(GameDownload::getProgressTitle).mapToInt(String::length).max().orElse(-1);
-
-		Map<GameDownload, ProgressBar> progressBars;
-		if (this.arguments.isQuiet()) {
-			progressBars = null;
-
-		} else {
-			progressBars = new HashMap<>();
-			downloads.stream().forEachOrdered(d -> {
-				progressBars.put(d, downloadProgress(d.getProgressTitle(), progressTitleWidth));
-			});
+	private void executeDownloads(@Nonnull DownloadPlan plan, @Nonnull OutputBackend backend,
+								  @Nullable ThroughputHistory history,
+								  @Nonnull Prediction prediction) throws InterruptedException {
+		// extras are mostly small files where per-request overhead dominates, so they get their own wide lane and a
+		// single progress bar instead of competing with installers for --threads
+		var extras = 0;
+		var progressTitleWidth = 0;
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (plan.getType(i) == EXTRA)
+				extras++;
+			else
+				progressTitleWidth = max(progressTitleWidth, plan.getTitle(i).length());
 		}
 
-		var pool = newFixedThreadPool(this.arguments.getThreads());
-		downloads.stream().forEachOrdered(d -> {
-			startDownload(d, pool, progressBars);
-		});
+		var progressBars = this.arguments.isQuiet() ? null : new ProgressBar[plan.getCount()];
+		ProgressBar extrasProgress = null;
+		ProgressBar totalProgress = null;
+		if (progressBars != null) {
+			if (prediction.bytes() > 0)
+				totalProgress = createTotalProgress(prediction.bytes(), progressTitleWidth);
+
+			for (int i = 0; i < progressBars.length; i++) {
+				if (plan.getType(i) != EXTRA)
+					progressBars[i] = downloadProgress(plan.getTitle(i), progressTitleWidth);
+			}
+
+			if (extras > 0)
+				extrasProgress = createExtrasProgress(extras, progressTitleWidth);
+		}
+
+		var scheduler = new HostScheduler(plan.getCount(), this.arguments.getPerHostThreads());
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (plan.getType(i) != EXTRA)
+				scheduler.add(i, plan.getHost(i));
+		}
+
+		try (var forecast = new Forecast(prediction.bytes(), prediction.nanos(), history, totalProgress);
+			 var concurrency = this.arguments.isAdaptiveThreads() ?
+				 new AdaptiveConcurrency(this.arguments.getMinThreads(), this.arguments.getMaxThreads()) : null;
+			 var extrasLane = extrasProgress) {
+			var threads = concurrency == null ? this.arguments.getThreads() : concurrency.getMaxLimit();
+			var pool = newFixedThreadPool(threads);
+			for (int i = 0; i < threads; i++)
+				pool.submit((AERunnable) () -> runWorker(plan, scheduler, backend, progressBars, concurrency,
+																	 forecast));
+
+			var extrasPool = extras == 0 ? null : newFixedThreadPool(this.arguments.getExtrasThreads());
+			for (int i = 0; i < plan.getCount(); i++) {
+				var index = i;
+				if (plan.getType(i) == EXTRA)
+					extrasPool.submit((AERunnable) () -> download(plan, index, backend, null, null, extrasLane, null));
+			}
+
+			pool.shutdown();
+			if (extrasPool != null)
+				extrasPool.shutdown();
+			pool.awaitTermination(MAX_VALUE, NANOSECONDS);
+			if (extrasPool != null)
+				extrasPool.awaitTermination(MAX_VALUE, NANOSECONDS);
+		}
 
-		pool.shutdown();
-		pool.awaitTermination(MAX_VALUE, NANOSECONDS);
+		scheduler.logStatistics();
 	}
 
-	@SuppressWarnings({ "null", "resource" })
-	private void startDownload(@Nonnull GameDownload download, @Nonnull ExecutorService service,
-							   @Nullable Map<GameDownload, ProgressBar> progressBars) {
-		service.submit((AERunnable) () -> {
-			var progress = progressBars == null ? null : progressBars.get(download);
+	@SuppressWarnings("null")
+	private static void runWorker(@Nonnull DownloadPlan plan, @Nonnull HostScheduler scheduler,
+								  @Nonnull OutputBackend backend, @Nullable ProgressBar[] progressBars,
+								  @Nullable AdaptiveConcurrency concurrency,
+								  @Nonnull Forecast forecast) throws InterruptedException {
+		while (true) {
+			if (concurrency != null)
+				concurrency.acquire(); // before picking a download, so a waiting worker doesn't hold up its host
+			var index = scheduler.poll();
+			if (index < 0) {
+				if (concurrency != null)
+					concurrency.release(); // and given back while waiting for a host, so it doesn't sit idle
+				if (index == HostScheduler.FINISHED)
+					return;
+
+				scheduler.awaitHost();
+				continue;
+			}
 
-			download.downloadTo(this.arguments.getOutputPath(), progress);
+			try {
+				var level = scheduler.getActive(); // recorded with the throughput, since it depends on it
+
+				var bytes = new LongAdder();
+				var transferred = ((LongConsumer) bytes::add).andThen(forecast);
+				if (concurrency != null)
+					transferred = transferred.andThen(concurrency);
+				var start = nanoTime();
+				try {
+					download(plan, index, backend, scheduler, progressBars == null ? null : progressBars[index], null,
+							 transferred);
+					if (bytes.sum() > 0)
+						forecast.record(plan.getHost(index), level, bytes.sum(), nanoTime() - start);
+				} catch (Exception e) { // already reported
+					if (concurrency != null)
+						concurrency.reportError();
+				} finally {
+					scheduler.finished(index, bytes.sum(), nanoTime() - start);
+				}
 
-			if (progress != null) {
-				progress.stepTo(progress.getMax());
-				progress.refresh();
-				progress.pause();
+			} finally {
+				if (concurrency != null)
+					concurrency.release();
 			}
-		});
+		}
+	}
+
+	private static void download(@Nonnull DownloadPlan plan, int index, @Nonnull OutputBackend backend,
+								 @Nullable HostScheduler scheduler, @Nullable ProgressBar progress,
+								 @Nullable ProgressBar lane, @Nullable LongConsumer transferred) throws IOException {
+		var download = plan.getDownload(index);
+		var path = plan.getPath(index);
+
+		plan.setState(index, DownloadPlan.RUNNING);
+		try {
+			plan.setHost(index, requireNonNullElse(download.refreshHost(), UNRESOLVED_HOST));
+			if (scheduler != null)
+				scheduler.resolved(index, plan.getHost(index));
+
+			backend.write(download, path, progress, transferred);
+			for (var duplicate : plan.getDuplicates(index))
+				backend.place(path, duplicate);
+
+		} catch (IOException | RuntimeException e) {
+			plan.setState(index, DownloadPlan.FAILED);
+			warn("Couldn't download @|bold %s|@: %s", plan.getTitle(index), e.getMessage());
+			throw e;
+
+		} finally {
+			if (lane != null)
+				lane.step();
+		}
+		plan.setState(index, DownloadPlan.DONE);
+
+		if (progress != null) {
+			progress.stepTo(progress.getMax());
+			progress.refresh();
+			progress.pause();
+		}
+	}
+
+	@Nonnull
+	public List<GameDownload> getDownloadList(boolean skipDownloaded) throws IOException, NotLoggedInException {
+		return getDownloadPlan(skipDownloaded).getDownloads();
 	}
 
 	@Nonnull
 	@SuppressWarnings({ "null", "resource" })
-	public List<GameDownload> getDownloadList() throws IOException, NotLoggedInException {
+	public DownloadPlan getDownloadPlan(boolean skipDownloaded) throws IOException, NotLoggedInException {
 		ForkJoinPool pool = null;
 		try (var p = this.arguments.isQuiet() ? null : createGameLoadingProgress()) {
 			if (p != null)
 				p.setExtraMessage("Loading user library");
 
-			var ids = this.arguments.getGameIds();
+			var ids = new LinkedHashMap<User, Set<String>>();
+			for (var user : this.arguments.getUsers())
+				ids.put(user, this.arguments.getGameIds(user));
+
+			var total = ids.values().stream().mapToInt(Set::size).sum();
 			if (p != null)
-				p.maxHint(ids.size());
+				p.maxHint(total);
 
-			var user = this.arguments.getUser();
-			pool = new ForkJoinPool(ids.size() + 1); // metadata requests take a while so it doesn't hurt to parallelize
+			pool = new ForkJoinPool(total + 1); // metadata requests take a while so it doesn't hurt to parallelize
 			var games = pool.submit(() -> { // this is a hack to increase parallelStream()'s parallelism
-				return ids.parallelStream().map(user::resolveGame).filter(Objects::nonNull).peek(g -> { // NOSONAR
-					if (p != null) {
-						p.setExtraMessage(g.getTitle());
-						p.step();
-					}
-				}).collect(toUnmodifiableSet());
+				return ids.entrySet()
+					.parallelStream()
+					.flatMap(e -> e.getValue().parallelStream().map(e.getKey()::resolveGame))
+					.filter(Objects::nonNull)
+					.peek(g -> { // NOSONAR
+						if (p != null) {
+							p.setExtraMessage(g.getTitle());
+							p.step();
+						}
+					})
+					.collect(toUnmodifiableSet());
 			}).join();
 
 			if (p != null) {
-				p.stepTo(ids.size());
+				p.stepTo(total);
 				p.setExtraMessage("Processing games");
 			}
-			return createDownloadList(games, pool);
+			return createDownloadPlan(games, pool, skipDownloaded);
 
 		} finally {
 			if (pool != null)
@@ -146,12 +377,13 @@ public class Main implements Callable<Integer> {
 
 	@Nonnull
 	@SuppressWarnings("null")
-	private List<GameDownload> createDownloadList(@Nonnull Set<Game> games, @Nonnull ForkJoinPool pool) {
+	private DownloadPlan createDownloadPlan(@Nonnull Set<Game> games, @Nonnull ForkJoinPool pool,
+											boolean skipDownloaded) {
 		var types = this.arguments.getTypes();
 		var platforms = this.arguments.getPlatforms();
-		var output = this.arguments.getOutputPath();
+		var backend = this.arguments.getOutputBackend();
 
-		return pool.submit(() -> {
+		var targets = pool.submit(() -> {
 			return games.parallelStream().flatMap(g -> concat(Stream.of(g), g.getDlcs().stream())).filter(g -> {
 				if (g instanceof GameDlc dlc && !this.arguments.downloadDlcs()) {
 					verbose("Downloading DLCs is disabled - skipping DLC @|bold %s|@ of game @|bold %s|@",
@@ -162,7 +394,7 @@ public class Main implements Callable<Integer> {
 					return true;
 				}
 			}).flatMap(g -> g.getDownloads().stream()).filter(d -> {
-				if (!platforms.contains(d.platform())) {
+				if (d.platform() != null && !platforms.contains(d.platform())) {
 					verbose("Downloading for @|bold %s|@ is disabled - not downloading @|bold %s|@",
 							d.platform().toString().toLowerCase(), d.getProgressTitle());
 					return false;
@@ -172,22 +404,64 @@ public class Main implements Callable<Integer> {
 							d.type().toString().toLowerCase(), d.getProgressTitle());
 					return false;
 
-				} else if (output.resolve(d.path()).toFile().exists()) {
-					verbose("Not downloading @|bold %s|@ because it is already downloaded",
-							d.type().toString().toLowerCase(), d.getProgressTitle());
-					return false;
-
 				} else {
 					return true;
 				}
-			})
-				.sorted(Comparator.<GameDownload, String>comparing(d -> d.game().getTitle())
-					.thenComparing(GameDownload::platform)
-					.thenComparing(d -> requireNonNullElse(d.version(), ""))
-					.thenComparing(GameDownload::type)
-					.thenComparingInt(GameDownload::part))
-				.toList();
+			}).map(d -> {
+				Path path;
+				try {
+					// the file name is only known after following the redirects
+					path = this.arguments.getAccountDirectory(d.game().getUser()).resolve(d.path());
+				} catch (RuntimeException e) {
+					warn("Couldn't resolve @|bold %s|@, skipping it: %s", d.getProgressTitle(), e.getMessage());
+					return new Target(d, null, false);
+				}
+
+				try {
+					return new Target(d, path, skipDownloaded && backend.exists(path));
+				} catch (IOException e) { // eg. a throttled S3 listing, which shouldn't stop the rest of the library
+					warn("Couldn't check whether @|bold %s|@ is already downloaded, skipping it: %s",
+						 d.getProgressTitle(), e.getMessage());
+					return new Target(d, null, false);
+				}
+			}).toList();
 		}).join();
+
+		var plan = new DownloadPlan.Builder();
+		targets.stream().filter(t -> t.path() == null).forEach(t -> plan.addUnplanned());
+		targets = targets.stream().filter(t -> t.path() != null).toList();
+		if (skipDownloaded)
+			deduplicate(targets, plan);
+		else
+			targets.forEach(t -> plan.add(t.download(), t.path(), List.of()));
+
+		return plan.build();
+	}
+
+	@SuppressWarnings("null")
+	private static void deduplicate(@Nonnull List<Target> targets, @Nonnull DownloadPlan.Builder plan) {
+		// accounts that own the same game share its files, so each is only downloaded once
+		var groups = targets.stream().collect(groupingBy(t -> SharedKey.of(t.download()), LinkedHashMap::new, toList()));
+
+		for (var group : groups.values()) {
+			var existing = group.stream().filter(Target::exists).findFirst();
+			var missing = group.stream().filter(not(Target::exists)).toList();
+			group.stream().filter(Target::exists).forEach(t -> {
+				verbose("Not downloading @|bold %s|@ because it is already downloaded",
+						t.download().getProgressTitle());
+			});
+
+			if (missing.isEmpty()) {
+				continue;
+
+			} else if (existing.isPresent()) {
+				missing.forEach(t -> plan.addCopy(existing.get().path(), t.path()));
+
+			} else {
+				var primary = missing.get(0);
+				plan.add(primary.download(), primary.path(), missing.stream().skip(1).map(Target::path).toList());
+			}
+		}
 	}
 
 	@Nonnull
@@ -201,6 +475,32 @@ public class Main implements Callable<Integer> {
 			.build();
 	}
 
+	@Nonnull
+	@SuppressWarnings("null")
+	private ProgressBar createTotalProgress(long bytes, int titleMinWidth) {
+		var title = "Total";
+		return new ProgressBarBuilder().setUpdateIntervalMillis(250)
+			.setTaskName(title + ".".repeat(max(0, titleMinWidth - title.length())))
+			.setStyle(this.arguments.getColorMode() == OFF ? UNICODE_BLOCK : COLORFUL_UNICODE_BLOCK)
+			.setInitialMax(bytes)
+			.setUnit(" MiB", 1024L * 1024L)
+			.showSpeed()
+			.hideEta()
+			.build();
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	private ProgressBar createExtrasProgress(int count, int titleMinWidth) {
+		var title = "Extras";
+		return new ProgressBarBuilder().setUpdateIntervalMillis(250)
+			.setTaskName(title + ".".repeat(max(0, titleMinWidth - title.length())))
+			.setStyle(this.arguments.getColorMode() == OFF ? UNICODE_BLOCK : COLORFUL_UNICODE_BLOCK)
+			.setInitialMax(count)
+			.setUnit(" files", 1)
+			.build();
+	}
+
 	@Nonnull
 	@SuppressWarnings("null")
 	private ProgressBar createGameLoadingProgress() {
@@ -214,20 +514,30 @@ public class Main implements Callable<Integer> {
 			.build();
 	}
 
+	@Nonnull
+	public Arguments getArguments() {
+		return this.arguments;
+	}
+
 	@Override
 	public Integer call() throws Exception {
+		return execute(this::run);
+	}
+
+	public int execute(@Nonnull Callable<Integer> command) throws Exception {
 		setVerbose(this.arguments.isVerbose());
 		setColorMode(this.arguments.getColorMode());
+		if (this.arguments.getJsonLogPath() != null)
+			Log.setJsonSink(this.arguments.getJsonLogPath());
 
 		try {
-			run();
+			return command.call();
 		} catch (NotLoggedInException e) {
 			println("""
 				@|bold,red Invalid token.|@ Find your token by logging into GOG in your browser, \
 				and copying the "gog-al" cookie from its developer tools.""");
 			return 1;
 		}
-		return 0;
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,179 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver;
+
+import static java.lang.Long.MAX_VALUE;
+import static java.lang.Runtime.getRuntime;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static picocli.CommandLine.Help.Visibility.ALWAYS;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import picocli.CommandLine.*;
+import zajc.gogarchiver.Audit.Result;
+import zajc.gogarchiver.api.*;
+import zajc.gogarchiver.api.FileChecksum.Chunk;
+
+@Command(name = "repair", description = """
+	re-downloads only the corrupted chunks of downloaded files, using GOG's per-chunk checksums""",
+		 mixinStandardHelpOptions = true, sortOptions = false)
+public class Repair implements Callable<Integer> {
+
+	private static final double MIB = 1024d * 1024d;
+
+	@ParentCommand private Main main;
+
+	@Option(names = { "--hash-threads" }, description = "number of chunks to hash in parallel", paramLabel = "THREADS",
+			showDefaultValue = ALWAYS) private int hashThreads = getRuntime().availableProcessors();
+	@Option(names = { "--all" }, description = """
+		also check files that the last audit found to be intact""") private boolean all = false;
+
+	@Override
+	public Integer call() throws Exception {
+		return this.main.execute(this::repair);
+	}
+
+	@SuppressWarnings("null")
+	private int repair() throws Exception {
+		var arguments = this.main.getArguments();
+		if (!arguments.isLocalOutput()) {
+			warn("Repairing is only supported for archives in the output directory");
+			return 1;
+		}
+
+		var output = arguments.getOutputPath();
+		var audited = Audit.loadState(output.resolve(Audit.STATE_FILE));
+
+		var pool = newFixedThreadPool(this.hashThreads);
+		var failed = 0;
+		try {
+			for (var download : this.main.getDownloadList(false)) {
+				var file = arguments.getOutputPath(download.game().getUser()).resolve(download.path());
+				if (!Files.isRegularFile(file))
+					continue;
+
+				var audit = audited.get(output.relativize(file));
+				if (!this.all && audit != null && audit.result() == Result.OK && audit.size() == Files.size(file)
+					&& audit.modified() == Files.getLastModifiedTime(file).toMillis()) {
+					verbose("Skipping @|bold %s|@ because the last audit found it intact", download.getProgressTitle());
+					continue;
+				}
+
+				try {
+					repair(download, file, pool);
+				} catch (IOException | RuntimeException e) {
+					warn("Couldn't repair @|bold %s|@: %s", download.getProgressTitle(), e.getMessage());
+					failed++;
+				}
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(MAX_VALUE, NANOSECONDS);
+		}
+
+		return failed == 0 ? 0 : 1;
+	}
+
+	private static void repair(@Nonnull GameDownload download, @Nonnull Path file,
+							   @Nonnull ExecutorService pool) throws IOException, InterruptedException {
+		var checksum = download.checksum();
+		if (checksum == null || checksum.chunks().isEmpty()) {
+			warn("No chunk checksums are available for @|bold %s|@, it can't be repaired", download.getProgressTitle());
+			return;
+		}
+
+		try (var channel = FileChannel.open(file, READ, WRITE)) {
+			var size = channel.size();
+			var bad = new ConcurrentLinkedQueue<Chunk>();
+			var hashes = new ArrayList<Future<?>>();
+			for (var chunk : checksum.chunks()) {
+				hashes.add(pool.submit(() -> {
+					if (chunk.to() >= size || !md5(channel, chunk.from(), chunk.length()).equals(chunk.md5()))
+						bad.add(chunk);
+					return null;
+				}));
+			}
+			awaitAll(hashes);
+
+			if (size > checksum.size()) {
+				verbose("Truncating @|bold %s|@ to %d bytes", download.getProgressTitle(), checksum.size());
+				channel.truncate(checksum.size());
+			}
+
+			if (bad.isEmpty()) {
+				verbose("@|bold %s|@ is intact", download.getProgressTitle());
+				if (size > checksum.size())
+					channel.force(true);
+				return;
+			}
+
+			var transferred = new AtomicLong();
+			var patches = new ArrayList<Future<?>>();
+			for (var chunk : bad) {
+				patches.add(pool.submit(() -> {
+					var data = download.game().getUser().downloadRange(download, chunk.from(), chunk.to());
+					var buffer = ByteBuffer.wrap(data);
+					if (data.length != chunk.length() || !md5(buffer).equals(chunk.md5()))
+						throw new IOException("The re-downloaded chunk at %d is corrupted too".formatted(chunk.from()));
+
+					buffer.rewind();
+					for (long position = chunk.from(); buffer.hasRemaining();)
+						position += channel.write(buffer, position);
+					transferred.addAndGet(data.length);
+					return null;
+				}));
+			}
+			awaitAll(patches);
+			channel.force(true);
+
+			println("Repaired @|bold %d|@ chunks of @|bold %s|@ (%.2f MiB transferred)"
+				.formatted(bad.size(), download.getProgressTitle(), transferred.get() / MIB));
+		}
+	}
+
+	private static void awaitAll(@Nonnull List<Future<?>> futures) throws IOException, InterruptedException {
+		// every task is waited for before the first failure is thrown, as they share the channel that's closed after
+		Throwable failure = null;
+		for (var future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			}
+		}
+
+		if (failure instanceof IOException ioe)
+			throw ioe;
+		else if (failure instanceof RuntimeException re)
+			throw re;
+		else if (failure != null)
+			throw new IOException(failure);
+	}
+
+}
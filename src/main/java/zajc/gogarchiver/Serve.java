@@ -0,0 +1,233 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver;
+
+import static java.lang.Math.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static picocli.CommandLine.Help.Visibility.ALWAYS;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.sun.net.httpserver.*;
+
+import picocli.CommandLine.*;
+import zajc.gogarchiver.api.GameDownload;
+import zajc.gogarchiver.output.OutputBackend;
+import zajc.gogarchiver.util.AsyncCache;
+
+@Command(name = "serve", description = """
+	serves the archive over HTTP, so other gogarchiver-ng instances can use it as a mirror (see --mirror)""",
+		 mixinStandardHelpOptions = true, sortOptions = false)
+public class Serve implements Callable<Integer> {
+
+	@ParentCommand private Main main;
+
+	@Option(names = { "--bind" }, description = "address to listen on", paramLabel = "ADDRESS",
+			showDefaultValue = ALWAYS) private String bind = "0.0.0.0";
+	@Option(names = { "--port" }, description = "port to listen on", paramLabel = "PORT",
+			showDefaultValue = ALWAYS) private int port = 8080;
+	@Option(names = { "--connections" }, description = "number of requests to serve at once",
+			paramLabel = "CONNECTIONS", showDefaultValue = ALWAYS) private int connections = 16;
+	@Option(names = { "--fetch-through" }, description = """
+		download files that aren't archived yet from GOG when they're requested""") private boolean fetchThrough =
+			false;
+
+	private final AsyncCache<Path, Boolean> fetches = new AsyncCache<>();
+	private Map<Path, GameDownload> index;
+	private Path root;
+	private OutputBackend backend;
+
+	@Override
+	public Integer call() throws Exception {
+		return this.main.execute(this::serve);
+	}
+
+	@SuppressWarnings("null")
+	private int serve() throws Exception {
+		var arguments = this.main.getArguments();
+		if (!arguments.isLocalOutput()) {
+			warn("Serving is only supported for archives in the output directory");
+			return 1;
+		}
+
+		this.root = arguments.getOutputPath().toAbsolutePath().normalize();
+		this.backend = arguments.getOutputBackend();
+
+		// mirror clients request files by their path within a single account's archive
+		var downloads = new HashMap<Path, GameDownload>();
+		for (var download : this.main.getDownloadList(false))
+			downloads.putIfAbsent(download.path(), download);
+		this.index = downloads;
+
+		var server = HttpServer.create(new InetSocketAddress(this.bind, this.port), 0);
+		server.setExecutor(newFixedThreadPool(this.connections));
+		server.createContext("/", this::handle);
+		server.start();
+
+		println("Serving @|bold %s|@ on port @|bold %d|@".formatted(this.root, this.port));
+		new CountDownLatch(1).await(); // until interrupted
+		return 0;
+	}
+
+	private void handle(@Nonnull HttpExchange exchange) throws IOException {
+		try (exchange) {
+			var method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			var requested = exchange.getRequestURI().getPath();
+			var md5 = requested.endsWith(".md5");
+			if (md5)
+				requested = requested.substring(0, requested.length() - ".md5".length());
+
+			var path = toArchivePath(requested);
+			if (path == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			var download = this.index.get(path);
+			if (md5) {
+				if (download != null && download.resolvedChecksum().peek() == null)
+					download.refreshHost(); // the URL resolved at startup might've expired by now
+				var checksum = download == null ? null : download.checksum();
+				if (checksum == null) {
+					exchange.sendResponseHeaders(404, -1);
+				} else {
+					var body = checksum.md5().getBytes(UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain");
+					exchange.sendResponseHeaders(200, method.equals("HEAD") ? -1 : body.length);
+					if (method.equals("GET"))
+						exchange.getResponseBody().write(body);
+				}
+				return;
+			}
+
+			var relative = download == null ? path :
+				this.main.getArguments().getAccountDirectory(download.game().getUser()).resolve(path);
+			var file = this.root.resolve(relative);
+			if (!Files.isRegularFile(file) && (!this.fetchThrough || download == null || !fetch(download, relative))) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			serveFile(exchange, file, method.equals("HEAD"));
+
+		} catch (IOException | RuntimeException e) {
+			warn("Couldn't serve %s: %s", exchange.getRequestURI(), e.getMessage());
+		}
+	}
+
+	@Nullable
+	@SuppressWarnings("null")
+	private static Path toArchivePath(@Nonnull String requested) {
+		var path = Path.of(requested.replaceAll("^/+", "")).normalize();
+		if (path.isAbsolute() || path.toString().isEmpty())
+			return null;
+
+		for (var part : path) {
+			if (part.toString().startsWith(".")) // parent directories, our own state and part files
+				return null;
+		}
+
+		return path;
+	}
+
+	private boolean fetch(@Nonnull GameDownload download, @Nonnull Path relative) {
+		try { // concurrent requests for the same file share one download
+			return this.fetches.get(relative, r -> {
+				verbose("Fetching @|bold %s|@ for a mirror client", download.getProgressTitle());
+				try {
+					download.refreshHost(); // the URL resolved at startup might've expired by now
+					this.backend.write(download, r, null, null);
+					this.backend.flush(r);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return true;
+			});
+
+		} catch (UncheckedIOException e) {
+			warn("Couldn't fetch @|bold %s|@: %s", download.getProgressTitle(), e.getCause().getMessage());
+			return false;
+		}
+	}
+
+	private static void serveFile(@Nonnull HttpExchange exchange, @Nonnull Path file,
+								  boolean head) throws IOException {
+		var size = Files.size(file);
+		var from = 0L;
+		var to = size - 1;
+		var status = 200;
+
+		var headers = exchange.getResponseHeaders();
+		headers.set("Accept-Ranges", "bytes");
+		headers.set("Content-Type", "application/octet-stream");
+
+		var range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+			var spec = range.substring("bytes=".length()).split("-", 2);
+			try {
+				if (spec[0].isBlank()) { // suffix range, eg. the last 500 bytes
+					from = max(0, size - Long.parseLong(spec[1].strip()));
+				} else {
+					from = Long.parseLong(spec[0].strip());
+					if (spec.length > 1 && !spec[1].isBlank())
+						to = min(to, Long.parseLong(spec[1].strip()));
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				from = size; // reported as unsatisfiable below
+			}
+
+			if (from > to) {
+				headers.set("Content-Range", "bytes */" + size);
+				exchange.sendResponseHeaders(416, -1);
+				return;
+			}
+
+			status = 206;
+			headers.set("Content-Range", "bytes %d-%d/%d".formatted(from, to, size));
+		}
+
+		var length = to - from + 1;
+		if (head) {
+			headers.set("Content-Length", Long.toString(length));
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+
+		exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+		try (var channel = FileChannel.open(file, READ);
+			 var body = Channels.newChannel(exchange.getResponseBody())) {
+			for (var position = from; position <= to;)
+				position += channel.transferTo(position, to - position + 1, body);
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.api;
+
+import static java.lang.Long.parseLong;
+import static zajc.gogarchiver.util.Utilities.newDocumentBuilder;
+
+import java.io.*;
+import java.util.*;
+
+import javax.annotation.*;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+public record FileChecksum(@Nonnull String md5, long size, @Nonnull List<Chunk> chunks) {
+
+	public record Chunk(long from, long to, @Nonnull String md5) {
+
+		public long length() {
+			return this.to - this.from + 1;
+		}
+
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public static FileChecksum fromXml(@Nonnull InputStream xml) throws IOException {
+		Element file;
+		try {
+			file = newDocumentBuilder().parse(xml).getDocumentElement();
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Couldn't parse the checksum XML", e);
+		}
+
+		var chunks = new ArrayList<Chunk>();
+		var chunkElements = file.getElementsByTagName("chunk");
+		for (int i = 0; i < chunkElements.getLength(); i++) {
+			var chunk = (Element) chunkElements.item(i);
+			if (!chunk.getAttribute("method").equalsIgnoreCase("md5"))
+				continue;
+
+			chunks.add(new Chunk(parseLong(chunk.getAttribute("from")), parseLong(chunk.getAttribute("to")),
+								 chunk.getTextContent().strip().toLowerCase()));
+		}
+
+		return new FileChecksum(file.getAttribute("md5").toLowerCase(), parseLong(file.getAttribute("total_size")),
+								List.copyOf(chunks));
+	}
+
+}
@@ -17,6 +17,8 @@
 package zajc.gogarchiver.api;
 
 import static java.util.Objects.hash;
+import static java.util.Objects.requireNonNullElseGet;
+import static java.util.stream.Stream.concat;
 import static zajc.gogarchiver.util.Utilities.stream;
 
 import java.util.*;
@@ -25,6 +27,7 @@ import javax.annotation.Nonnull;
 
 import kong.unirest.core.json.*;
 import zajc.gogarchiver.api.GameDownload.Platform;
+import zajc.gogarchiver.jfr.GameParseEvent;
 
 public class Game {
 
@@ -36,16 +39,16 @@ public class Game {
 
 	@SuppressWarnings("null")
 	protected Game(@Nonnull User user, @Nonnull String id, @Nonnull String title, @Nonnull JSONObject downloads,
-				   @Nonnull JSONArray dlcs) {
+				   @Nonnull JSONArray extras, @Nonnull JSONArray dlcs) {
 		this.user = user;
 		this.id = id;
 		this.title = title;
 
-		this.downloads = downloads.keySet().stream().flatMap(p -> {
+		this.downloads = concat(downloads.keySet().stream().flatMap(p -> {
 			var platform = Platform.valueOf(p.toUpperCase());
 			return stream(downloads.getJSONArray(p)).map(JSONObject.class::cast)
 				.map(d -> GameDownload.fromJson(this, d, platform)); // NOSONAR
-		}).toList();
+		}), stream(extras).map(JSONObject.class::cast).map(e -> GameDownload.fromExtraJson(this, e))).toList();
 
 		this.dlcs = stream(dlcs).map(JSONObject.class::cast).map(j -> GameDlc.fromJson(this, j)).toList();
 	}
@@ -53,11 +56,24 @@ public class Game {
 	@Nonnull
 	@SuppressWarnings("null")
 	public static Game fromJson(@Nonnull User user, @Nonnull JSONObject json, @Nonnull String id) {
+		var event = new GameParseEvent();
+		event.begin();
+
 		var title = json.getString("title");
 		var downloads = json.getJSONArray("downloads").getJSONArray(0).getJSONObject(1);
+		var extras = requireNonNullElseGet(json.optJSONArray("extras"), JSONArray::new);
 		var dlcs = json.getJSONArray("dlcs");
 
-		return new Game(user, id, title, downloads, dlcs);
+		var game = new Game(user, id, title, downloads, extras, dlcs);
+		if (event.shouldCommit()) {
+			event.gameId = id;
+			event.title = title;
+			event.downloads = game.getDownloads().size();
+			event.dlcs = game.getDlcs().size();
+			event.commit();
+		}
+
+		return game;
 	}
 
 	@Nonnull
@@ -95,7 +111,8 @@ public class Game {
 		if (this == obj)
 			return true;
 		if (obj instanceof Game other)
-			return Objects.equals(this.id, other.id) && Objects.equals(this.title, other.title);
+			return this.user == other.user && Objects.equals(this.id, other.id)
+				&& Objects.equals(this.title, other.title);
 		else
 			return false;
 	}
@@ -16,6 +16,8 @@
  */
 package zajc.gogarchiver.api;
 
+import static java.util.Objects.requireNonNullElseGet;
+
 import java.util.Objects;
 
 import javax.annotation.Nonnull;
@@ -26,8 +28,9 @@ public class GameDlc extends Game {
 
 	@Nonnull private final Game parent;
 
-	private GameDlc(@Nonnull Game parent, @Nonnull String title, @Nonnull JSONObject downloads) {
-		super(parent.getUser(), parent.getId(), title, downloads, new JSONArray());
+	private GameDlc(@Nonnull Game parent, @Nonnull String title, @Nonnull JSONObject downloads,
+					@Nonnull JSONArray extras) {
+		super(parent.getUser(), parent.getId(), title, downloads, extras, new JSONArray());
 
 		this.parent = parent;
 	}
@@ -37,8 +40,9 @@ public class GameDlc extends Game {
 	public static GameDlc fromJson(@Nonnull Game parent, @Nonnull JSONObject json) {
 		var title = json.getString("title");
 		var downloads = json.getJSONArray("downloads").getJSONArray(0).getJSONObject(1);
+		var extras = requireNonNullElseGet(json.optJSONArray("extras"), JSONArray::new);
 
-		return new GameDlc(parent, title, downloads);
+		return new GameDlc(parent, title, downloads, extras);
 	}
 
 	@Nonnull
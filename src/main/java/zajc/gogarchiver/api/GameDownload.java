@@ -20,27 +20,30 @@ import static java.lang.Integer.parseInt;
 import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.hash;
-import static java.util.regex.Pattern.compile;
+import static java.util.regex.Pattern.*;
 import static zajc.gogarchiver.api.GameDownload.Type.*;
 import static zajc.gogarchiver.util.Utilities.warn;
 
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.file.Path;
-import java.util.Objects;
+import java.util.*;
+import java.util.function.LongConsumer;
 import java.util.regex.Pattern;
 
 import javax.annotation.*;
 
 import kong.unirest.core.json.JSONObject;
 import me.tongfei.progressbar.ProgressBar;
-import zajc.gogarchiver.util.LazyValue;
+import zajc.gogarchiver.util.*;
 
 public record GameDownload(@Nonnull Game game, @Nonnull String originalUrl, @Nonnull LazyValue<String> resolvedUrl,
-	@Nonnull Platform platform, @Nullable String name, @Nullable String version, @Nonnull Type type, int part) {
+	@Nonnull LazyValue<Optional<FileChecksum>> resolvedChecksum, @Nullable Platform platform, @Nullable String name,
+	@Nullable String version, @Nonnull Type type, int part, long size) {
 
 	private static final Pattern TYPE_PATTERN = compile("\\d+(\\p{IsLatin}+)");
 	private static final Pattern PART_PATTERN = compile("\\d+$");
+	private static final Pattern SIZE_PATTERN = compile("([\\d.]+)\\s*([KMGT]?B)", CASE_INSENSITIVE);
 
 	@Nonnull
 	public static GameDownload fromJson(@Nonnull Game game, @Nonnull JSONObject download, @Nonnull Platform platform) {
@@ -49,8 +52,19 @@ public record GameDownload(@Nonnull Game game, @Nonnull String originalUrl, @Non
 		var version = download.optString("version");
 		var type = parseType(url);
 		var part = parsePart(url);
+		var size = parseSize(download.optString("size"));
 
-		return new GameDownload(game, url, new LazyValue<>(), platform, name, version, type, part);
+		return new GameDownload(game, url, new LazyValue<>(), new LazyValue<>(), platform, name, version, type, part, size);
+	}
+
+	@Nonnull
+	public static GameDownload fromExtraJson(@Nonnull Game game, @Nonnull JSONObject extra) {
+		// extras (manuals, soundtracks, wallpapers, ...) aren't tied to a platform and don't come in parts
+		var url = "https://www.gog.com/" + extra.getString("manualUrl").substring(1);
+		var name = extra.optString("name");
+		var size = parseSize(extra.optString("size"));
+
+		return new GameDownload(game, url, new LazyValue<>(), new LazyValue<>(), null, name, null, EXTRA, 0, size);
 	}
 
 	@Nonnull
@@ -82,16 +96,44 @@ public record GameDownload(@Nonnull Game game, @Nonnull String originalUrl, @Non
 		}
 	}
 
+	private static long parseSize(@Nullable String size) {
+		// gameDetails only has a rounded, human readable size (eg. "1.2 GB"), but that's good enough for estimates
+		if (size == null)
+			return -1;
+
+		var m = SIZE_PATTERN.matcher(size);
+		if (!m.find())
+			return -1;
+
+		var multiplier = switch (m.group(2).toUpperCase()) {
+			case "KB" -> 1L << 10;
+			case "MB" -> 1L << 20;
+			case "GB" -> 1L << 30;
+			case "TB" -> 1L << 40;
+			default -> 1L;
+		};
+		try {
+			return (long) (Double.parseDouble(m.group(1)) * multiplier);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	@SuppressWarnings("null")
-	public void downloadTo(@Nonnull Path outputDirectory, @Nullable ProgressBar monitor) throws IOException {
-		game().getUser().downloadTo(this, outputDirectory.resolve(path()), monitor);
+	public void downloadTo(@Nonnull Path outputDirectory, @Nullable ProgressBar monitor,
+						   @Nullable LongConsumer transferred) throws IOException {
+		game().getUser().downloadTo(this, outputDirectory.resolve(path()), monitor, transferred);
 	}
 
 	@Nonnull
 	@SuppressWarnings("null")
 	public Path path() {
-		return Path.of(this.game.getTitle(), this.platform.toString().toLowerCase(), this.type.toString().toLowerCase(),
-					   URLDecoder.decode(url().substring(url().lastIndexOf('/') + 1), UTF_8));
+		var file = URLDecoder.decode(url().substring(url().lastIndexOf('/') + 1), UTF_8);
+		if (this.platform == null)
+			return Path.of(this.game.getTitle(), this.type.toString().toLowerCase(), file);
+		else
+			return Path.of(this.game.getTitle(), this.platform.toString().toLowerCase(),
+						   this.type.toString().toLowerCase(), file);
 	}
 
 	@Nonnull
@@ -100,9 +142,39 @@ public record GameDownload(@Nonnull Game game, @Nonnull String originalUrl, @Non
 		return this.resolvedUrl.get(() -> game().getUser().resolveUrl(this));
 	}
 
+	@Nullable
+	public String host() {
+		return Utilities.host(url());
+	}
+
+	@Nullable
+	public String knownHost() {
+		var url = this.resolvedUrl.peek();
+		return url == null ? null : Utilities.host(url);
+	}
+
+	@Nullable
+	public String refreshHost() {
+		// signed CDN URLs expire, so the one resolved while planning (for the file name) isn't reused for downloading
+		this.resolvedUrl.unset();
+		return host();
+	}
+
+	@Nullable
+	@SuppressWarnings("null")
+	public FileChecksum checksum() {
+		var checksum = this.resolvedChecksum.get(() -> Optional.ofNullable(game().getUser().getChecksum(this)));
+		if (checksum.isEmpty()) // might've been a network error, so it's looked up again next time
+			this.resolvedChecksum.unset();
+		return checksum.orElse(null);
+	}
+
 	@Nonnull
 	@SuppressWarnings("null")
 	public String getProgressTitle() {
+		if (platform() == null)
+			return format("%s (%s, %s)", game().getTitle(), type().toString().toLowerCase(), name());
+
 		return format("%s (%s%s%s, %s)", game().getTitle(), this.part != 0 ? "part " + (part() + 1) + ", " : "",
 					  version() != null ? "ver. " + version() + ", " : "", platform().toString().toLowerCase(),
 					  type().toString().toLowerCase());
@@ -141,6 +213,7 @@ public record GameDownload(@Nonnull Game game, @Nonnull String originalUrl, @Non
 
 		INSTALLER,
 		PATCH,
+		EXTRA,
 		UNKNOWN;
 
 	}
@@ -0,0 +1,146 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.api;
+
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Supplier;
+
+import javax.annotation.*;
+
+import kong.unirest.core.json.JSONObject;
+
+public class HttpTrace {
+
+	// file downloads aren't traced, only the small requests that make up planning, so bodies can be kept whole
+	public enum Kind {
+		METADATA,
+		REDIRECT,
+		CHECKSUM;
+	}
+
+	public record Exchange(int status, @Nullable String statusText, @Nullable String location, @Nullable String body) {
+
+		public boolean isSuccess() {
+			return this.status >= 200 && this.status < 300;
+		}
+
+		@Nonnull
+		public Exchange check(@Nonnull String url) {
+			if (!isSuccess())
+				throw new RuntimeException("Got a bad HTTP response on %s: %d %s".formatted(url, this.status,
+																							this.statusText));
+			return this;
+		}
+
+	}
+
+	private record Recorded(@Nonnull Exchange exchange, long latency) {}
+
+	@Nullable private final Writer recording;
+	@Nullable private final Map<String, Deque<Recorded>> replay;
+
+	private HttpTrace(@Nullable Writer recording, @Nullable Map<String, Deque<Recorded>> replay) {
+		this.recording = recording;
+		this.replay = replay;
+	}
+
+	@Nonnull
+	public static HttpTrace record(@Nonnull Path file) throws IOException {
+		return new HttpTrace(Files.newBufferedWriter(file, UTF_8, CREATE, TRUNCATE_EXISTING, WRITE), null);
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public static HttpTrace replay(@Nonnull Path file) throws IOException {
+		var replay = new HashMap<String, Deque<Recorded>>();
+		try (var lines = Files.lines(file, UTF_8)) {
+			lines.filter(l -> !l.isBlank()).map(JSONObject::new).forEach(json -> {
+				var exchange = new Exchange(json.getInt("status"), json.optString("statusText", null),
+											json.optString("location", null), json.optString("body", null));
+				replay.computeIfAbsent(key(Kind.valueOf(json.getString("kind")), json.getString("url")),
+									   k -> new ArrayDeque<>())
+					.add(new Recorded(exchange, json.getLong("latency")));
+			});
+		}
+
+		return new HttpTrace(null, replay);
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public Exchange exchange(@Nonnull Kind kind, @Nonnull String url, @Nonnull Supplier<Exchange> live) {
+		if (this.replay != null)
+			return replay(this.replay, kind, url);
+
+		var start = nanoTime();
+		var exchange = live.get();
+		var latency = nanoTime() - start;
+
+		var json = new JSONObject().put("kind", kind.name())
+			.put("url", url)
+			.put("latency", latency)
+			.put("status", exchange.status())
+			.put("statusText", exchange.statusText())
+			.put("location", exchange.location())
+			.put("body", exchange.body());
+		try {
+			synchronized (this.recording) {
+				this.recording.write(json.toString());
+				this.recording.write('\n');
+				this.recording.flush(); // so the trace is usable even if the run is interrupted
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return exchange;
+	}
+
+	@Nonnull
+	private static Exchange replay(@Nonnull Map<String, Deque<Recorded>> replay, @Nonnull Kind kind,
+								   @Nonnull String url) {
+		var recorded = replay.get(key(kind, url));
+		if (recorded == null)
+			throw new RuntimeException("The trace doesn't contain a response for " + url);
+
+		// repeated requests are answered in the recorded order, and the last answer is kept for any further ones
+		Recorded next;
+		synchronized (recorded) {
+			next = recorded.size() > 1 ? recorded.removeFirst() : recorded.getFirst();
+		}
+
+		var deadline = nanoTime() + next.latency();
+		long remaining;
+		while ((remaining = deadline - nanoTime()) > 0)
+			parkNanos(remaining);
+
+		return next.exchange();
+	}
+
+	@Nonnull
+	private static String key(@Nonnull Kind kind, @Nonnull String url) {
+		return kind + " " + url;
+	}
+
+}
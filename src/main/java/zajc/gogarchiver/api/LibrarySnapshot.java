@@ -0,0 +1,223 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.api;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.TimeUnit.*;
+import static zajc.gogarchiver.util.ArchiveFiles.*;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.annotation.*;
+
+import kong.unirest.core.JsonNode;
+import zajc.gogarchiver.util.AsyncCache;
+
+public class LibrarySnapshot {
+
+	public static final String DIRECTORY = ".gogarchiver-library";
+
+	private static final String INDEX_FILE = "index.tsv";
+	private static final String LICENCES_FILE = "licences.json";
+
+	// games that changed recently are checked daily, and the longer one stays the same the less often it's checked
+	private static final long RECENT = DAYS.toMillis(30);
+	private static final long DORMANT = DAYS.toMillis(365);
+	private static final long DAILY = DAYS.toMillis(1);
+	private static final long WEEKLY = DAYS.toMillis(7);
+	private static final long MONTHLY = DAYS.toMillis(30);
+	private static final long SLACK = HOURS.toMillis(2); // so a daily job doesn't miss its day by a few minutes
+
+	@Nonnull private final Path root;
+	private final boolean fullRefresh;
+	private final boolean readOnly;
+	@Nonnull private final AsyncCache<String, Account> accounts = new AsyncCache<>();
+
+	private record Entry(long checked, long changed) {
+
+		@Nonnull
+		public String toLine(@Nonnull String id) {
+			return "%s\t%d\t%d%n".formatted(id, this.checked, this.changed);
+		}
+
+		public boolean isDue(long now) {
+			var age = now - this.changed;
+			long interval;
+			if (age < RECENT)
+				interval = DAILY;
+			else if (age < DORMANT)
+				interval = WEEKLY;
+			else
+				interval = MONTHLY;
+
+			return now - this.checked >= interval - SLACK;
+		}
+
+	}
+
+	private record Account(@Nonnull Path directory, @Nonnull Map<String, Entry> entries) {}
+
+	public LibrarySnapshot(@Nonnull Path root, boolean fullRefresh, boolean readOnly) {
+		// a read-only snapshot still saves requests for games that aren't due, but doesn't record anything, for runs
+		// that mustn't change the archive
+		this.root = root;
+		this.fullRefresh = fullRefresh;
+		this.readOnly = readOnly;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public JsonNode getLicences(@Nonnull User user, @Nonnull Supplier<JsonNode> fetch) {
+		// the licence list is a single request and the only way to find new games, so it's always fetched
+		var account = getAccount(user);
+		var licences = fetch.get();
+		if (!this.readOnly) {
+			try {
+				write(account.directory().resolve(LICENCES_FILE), licences.toString());
+			} catch (IOException e) {
+				warn("Couldn't save the licence list of @|bold %s|@: %s", user.getUsername(), e.getMessage());
+			}
+		}
+
+		var known = account.entries().size();
+		if (known > 0 && !this.fullRefresh) {
+			var unknown = stream(licences.getArray()).map(Object::toString)
+				.filter(id -> !account.entries().containsKey(id))
+				.count();
+			verbose("@|bold %s|@ has %d games that haven't been seen before", user.getUsername(), unknown);
+		}
+
+		return licences;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public JsonNode getGameDetails(@Nonnull User user, @Nonnull String id, @Nonnull Supplier<JsonNode> fetch) {
+		var account = getAccount(user);
+		var file = account.directory().resolve(id + ".json");
+		var entry = account.entries().get(id);
+		var now = currentTimeMillis();
+
+		String cached = null;
+		if (entry != null) {
+			try {
+				cached = Files.readString(file, UTF_8);
+			} catch (IOException e) {
+				verbose("Couldn't read the snapshot of game @|bold %s|@, fetching it again: %s", id, e.getMessage());
+			}
+		}
+
+		if (cached != null && !this.fullRefresh && !entry.isDue(now))
+			return new JsonNode(cached);
+
+		JsonNode details;
+		try {
+			details = fetch.get();
+		} catch (RuntimeException e) {
+			if (cached == null)
+				throw e;
+
+			warn("Couldn't refresh game @|bold %s|@, using the snapshot from before: %s", id, e.getMessage());
+			return new JsonNode(cached);
+		}
+
+		if (this.readOnly)
+			return details;
+
+		var text = details.toString();
+		var modified = cached == null || !cached.equals(text);
+		try {
+			if (modified)
+				write(file, text);
+			update(account, id, new Entry(now, modified ? now : entry.changed()));
+
+		} catch (IOException e) {
+			warn("Couldn't save the snapshot of game @|bold %s|@: %s", id, e.getMessage());
+		}
+
+		return details;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	private Account getAccount(@Nonnull User user) {
+		return this.accounts.get(user.getUsername(), username -> {
+			var directory = this.root.resolve(username);
+			try {
+				if (!this.readOnly)
+					createDirectories(directory);
+				return new Account(directory, loadIndex(directory.resolve(INDEX_FILE), this.readOnly));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private static void update(@Nonnull Account account, @Nonnull String id, @Nonnull Entry entry) throws IOException {
+		account.entries().put(id, entry);
+		synchronized (account) {
+			Files.writeString(account.directory().resolve(INDEX_FILE), entry.toLine(id), UTF_8, CREATE, APPEND, WRITE);
+		}
+	}
+
+	private static void write(@Nonnull Path file, @Nonnull String text) throws IOException {
+		var temp = partFile(file);
+		Files.writeString(temp, text, UTF_8);
+		commit(temp, file);
+	}
+
+	@Nonnull
+	private static Map<String, Entry> loadIndex(@Nonnull Path indexFile, boolean readOnly) throws IOException {
+		var entries = new ConcurrentHashMap<String, Entry>();
+		if (!Files.exists(indexFile))
+			return entries;
+
+		int lines = 0;
+		try (var reader = Files.newBufferedReader(indexFile, UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) { // later lines take precedence
+				lines++;
+				var l = line.split("\t", 3);
+				if (l.length != 3)
+					continue;
+
+				try {
+					entries.put(l[0], new Entry(Long.parseLong(l[1]), Long.parseLong(l[2])));
+				} catch (NumberFormatException e) {
+					verbose("Ignoring a malformed library snapshot line for %s", l[0]);
+				}
+			}
+		}
+
+		if (!readOnly && lines > entries.size() * 2) { // every refresh appends a line, so this is compacted once in a while
+			var compacted = new StringBuilder();
+			entries.forEach((id, entry) -> compacted.append(entry.toLine(id)));
+			write(indexFile, compacted.toString());
+		}
+
+		return entries;
+	}
+
+}
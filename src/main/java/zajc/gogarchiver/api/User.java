@@ -16,24 +16,34 @@
  */
 package zajc.gogarchiver.api;
 
-import static java.io.File.separatorChar;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.util.stream.Collectors.toUnmodifiableSet;
 import static zajc.gogarchiver.api.GameDownload.Platform.LINUX;
+import static zajc.gogarchiver.util.ArchiveFiles.*;
 import static zajc.gogarchiver.util.Utilities.*;
 
 import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 import javax.annotation.*;
 
 import kong.unirest.core.*;
 import kong.unirest.core.json.JSONObject;
 import me.tongfei.progressbar.ProgressBar;
+import zajc.gogarchiver.api.HttpTrace.*;
 import zajc.gogarchiver.exception.NotLoggedInException;
-import zajc.gogarchiver.util.LazyValue;
+import zajc.gogarchiver.jfr.*;
+import zajc.gogarchiver.util.*;
 
 public class User {
 
@@ -44,12 +54,23 @@ public class User {
 	private static final String URL_GAME_DETAILS = "https://www.gog.com/account/gameDetails/%s.json";
 
 	@Nonnull private final String token;
+	@Nullable private final URI mirror;
+	@Nullable private final LibrarySnapshot snapshot;
+	@Nullable private final HttpTrace trace;
 	@Nonnull private final LazyValue<Set<String>> libraryIds = new LazyValue<>();
 	@Nonnull private final LazyValue<JSONObject> userData = new LazyValue<>();
-	@Nonnull private final Map<String, Game> games = new ConcurrentHashMap<>();
+	@Nonnull private final AsyncCache<String, Game> games = new AsyncCache<>();
 
 	public User(@Nonnull String token) throws NotLoggedInException {
+		this(token, null, null, null);
+	}
+
+	public User(@Nonnull String token, @Nullable URI mirror, @Nullable LibrarySnapshot snapshot,
+				@Nullable HttpTrace trace) throws NotLoggedInException {
 		this.token = token;
+		this.mirror = mirror;
+		this.snapshot = snapshot;
+		this.trace = trace;
 
 		if (!isLoggedIn())
 			throw new NotLoggedInException();
@@ -74,13 +95,16 @@ public class User {
 	@Nonnull
 	@SuppressWarnings("null")
 	public Set<String> getLibraryIds() {
-		return this.libraryIds
-			.get(() -> stream(getJson(URL_LIBRARY).getArray()).map(Object::toString).collect(toUnmodifiableSet()));
+		return this.libraryIds.get(() -> {
+			var licences = this.snapshot == null ?
+				getJson(URL_LIBRARY) : this.snapshot.getLicences(this, () -> getJson(URL_LIBRARY));
+			return stream(licences.getArray()).map(Object::toString).collect(toUnmodifiableSet());
+		});
 	}
 
 	@Nullable
 	public Game resolveGame(@Nonnull String id) {
-		return this.games.computeIfAbsent(id, this::resolveGameDirectly);
+		return this.games.get(id, this::resolveGameDirectly);
 	}
 
 	@Nullable
@@ -91,7 +115,8 @@ public class User {
 			return null;
 		}
 
-		var json = getJson(URL_GAME_DETAILS.formatted(id));
+		var url = URL_GAME_DETAILS.formatted(id);
+		var json = this.snapshot == null ? getJson(url) : this.snapshot.getGameDetails(this, id, () -> getJson(url));
 		if (json.isArray() && json.getArray().isEmpty()) // is a dlc
 			return null;
 		else
@@ -101,36 +126,282 @@ public class User {
 	@Nonnull
 	@SuppressWarnings("null")
 	public JsonNode getJson(@Nonnull String url) {
-		return checkResponse(url, get(url).asJson()).getBody();
+		var event = new MetadataRequestEvent();
+		event.begin();
+
+		var resp = exchange(Kind.METADATA, url, () -> {
+			var r = get(url).asString();
+			return new Exchange(r.getStatus(), r.getStatusText(), null, r.getBody());
+		});
+		if (event.shouldCommit()) {
+			event.url = url;
+			event.host = host(url);
+			event.status = resp.status();
+			event.commit();
+		}
+
+		return new JsonNode(resp.check(url).body());
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	private Exchange exchange(@Nonnull Kind kind, @Nonnull String url, @Nonnull Supplier<Exchange> live) {
+		// metadata, redirects and checksums go through here so they can be recorded or replayed, see HttpTrace
+		return this.trace == null ? live.get() : this.trace.exchange(kind, url, live);
 	}
 
 	@SuppressWarnings("resource")
-	public void downloadTo(@Nonnull GameDownload download, @Nonnull Path output,
-						   @Nullable ProgressBar monitor) throws IOException {
+	public void downloadTo(@Nonnull GameDownload download, @Nonnull Path output, @Nullable ProgressBar monitor,
+						   @Nullable LongConsumer transferred) throws IOException {
 		var parent = output.getParent();
 		if (parent != null)
 			createDirectories(parent);
 
-		var temp = new File((parent == null ? "" : parent.toString() + separatorChar) + '.' +
-			output.getFileName().toString() +
-			".part");
+		var temp = partFile(output).toFile();
 		temp.deleteOnExit(); // NOSONAR it's good enough
 
-		var req = get(download.url());
-		if (monitor != null) {
+		var event = new DownloadEvent();
+		event.begin();
+
+		var received = new AtomicLong();
+		var url = getMirrorUrl(download);
+		HttpResponse<File> resp = null;
+		if (url != null) {
+			try {
+				resp = fetchFile(Unirest.get(url), temp, monitor, transferred, received, event.isEnabled());
+				if (!resp.isSuccess()) {
+					verbose("@|bold %s|@ isn't available on the mirror (%d), downloading it from GOG",
+							download.getProgressTitle(), resp.getStatus());
+					resp = null;
+
+				} else if (!isComplete(resp) || !isIntact(download, url, resp.getBody().toPath())) {
+					verbose("""
+						@|bold %s|@ on the mirror is incomplete or doesn't match its checksum, downloading it from \
+						GOG""", download.getProgressTitle());
+					resp = null;
+				}
+			} catch (UnirestException e) {
+				verbose("Couldn't download @|bold %s|@ from the mirror, downloading it from GOG: %s",
+						download.getProgressTitle(), e.getMessage());
+			}
+
+			if (resp == null) { // what came from the mirror doesn't count towards the download from GOG
+				var counted = received.getAndSet(0);
+				if (transferred != null && counted > 0)
+					transferred.accept(-counted);
+				if (monitor != null)
+					monitor.stepTo(0);
+			}
+		}
+
+		if (resp == null) {
+			url = download.url();
+			resp = fetchFile(get(url), temp, monitor, transferred, received, event.isEnabled());
+		}
+
+		if (event.shouldCommit()) {
+			event.gameId = download.game().getId();
+			event.file = output.getFileName().toString();
+			event.host = host(url);
+			event.bytes = received.get();
+			event.status = resp.getStatus();
+			event.commit();
+		}
+
+		var outputFile = checkResponse(download.originalUrl(), resp).getBody().toPath();
+		if (!isComplete(resp))
+			throw new IOException("Download of %s was cut short".formatted(download.getProgressTitle()));
+
+		if (download.platform() == LINUX)
+			outputFile.toFile().setExecutable(true, false); // NOSONAR doesn't matter much
+
+		var finalizeEvent = new FinalizeEvent();
+		finalizeEvent.begin();
+		commit(outputFile, output);
+
+		if (finalizeEvent.shouldCommit()) {
+			finalizeEvent.gameId = download.game().getId();
+			finalizeEvent.file = output.getFileName().toString();
+			finalizeEvent.bytes = received.get();
+			finalizeEvent.commit();
+		}
+	}
+
+	@SuppressWarnings("null")
+	private static boolean isComplete(@Nonnull HttpResponse<File> resp) throws IOException {
+		var expectedLength = resp.getHeaders().getFirst("Content-Length");
+		return expectedLength.isEmpty() || resp.getHeaders().containsKey("Content-Encoding")
+			|| Files.size(resp.getBody().toPath()) == Long.parseLong(expectedLength);
+	}
+
+	private static boolean isIntact(@Nonnull GameDownload download, @Nonnull String mirrorUrl,
+									@Nonnull Path file) throws IOException {
+		var expected = getExpectedMd5(download, mirrorUrl);
+		if (expected == null)
+			return true; // nothing to check against, same as when downloading from GOG
+
+		try (var channel = FileChannel.open(file, READ)) {
+			return expected.equalsIgnoreCase(md5(channel, 0, channel.size()));
+		}
+	}
+
+	@Nullable
+	private static String getExpectedMd5(@Nonnull GameDownload download, @Nonnull String mirrorUrl) {
+		// the mirror can have a stale or corrupted copy, so what it sends is checked against GOG's checksum, or the
+		// mirror's own if GOG has none
+		try {
+			var checksum = download.checksum();
+			if (checksum != null)
+				return checksum.md5();
+		} catch (RuntimeException e) {
+			verbose("Couldn't get the checksum of @|bold %s|@ from GOG: %s", download.getProgressTitle(),
+					e.getMessage());
+		}
+
+		try {
+			var resp = Unirest.get(mirrorUrl + ".md5").asString();
+			if (resp.isSuccess() && !resp.getBody().isBlank())
+				return resp.getBody().strip();
+		} catch (UnirestException e) {
+			verbose("Couldn't get the checksum of @|bold %s|@ from the mirror: %s", download.getProgressTitle(),
+					e.getMessage());
+		}
+
+		return null;
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	private static HttpResponse<File> fetchFile(@Nonnull GetRequest req, @Nonnull File temp,
+												@Nullable ProgressBar monitor, @Nullable LongConsumer transferred,
+												@Nonnull AtomicLong received, boolean count) {
+		if (monitor != null || transferred != null || count) {
+			var last = new AtomicLong();
 			req.downloadMonitor((_1, _2, downloaded, total) -> {
-				if (monitor.getMax() == 1)
-					monitor.maxHint(total);
-				monitor.stepTo(downloaded);
+				if (monitor != null) {
+					if (monitor.getMax() == 1)
+						monitor.maxHint(total);
+					monitor.stepTo(downloaded);
+				}
+
+				var delta = downloaded - last.getAndSet(downloaded);
+				received.addAndGet(delta);
+				if (transferred != null)
+					transferred.accept(delta);
 			});
 		}
 
-		var outputFile = checkResponse(download.originalUrl(), req.asFile(temp.getPath())).getBody();
-		if (download.platform() == LINUX)
-			outputFile.setExecutable(true, false); // NOSONAR doesn't matter much
+		return req.asFile(temp.getPath(), REPLACE_EXISTING);
+	}
+
+	@Nullable
+	private String getMirrorUrl(@Nonnull GameDownload download) {
+		if (this.mirror == null)
+			return null;
+
+		var path = new StringJoiner("/");
+		download.path().forEach(p -> path.add(URLEncoder.encode(p.toString(), UTF_8).replace("+", "%20")));
+		return this.mirror.toString().replaceAll("/+$", "") + "/" + path;
+	}
+
+	@SuppressWarnings("null")
+	public void downloadStream(@Nonnull GameDownload download, @Nullable ProgressBar monitor,
+							   @Nullable LongConsumer transferred, @Nonnull BodyHandler handler) throws IOException {
+		var event = new DownloadEvent();
+		event.begin();
+
+		var received = new AtomicLong();
+		var failure = new AtomicReference<IOException>();
+		var url = getMirrorUrl(download);
+		HttpResponse<Object> resp = null;
+		if (url != null) {
+			var digest = md5Digest();
+			try {
+				resp = streamBody(Unirest.get(url), monitor, transferred,
+								  body -> handler.handle(new DigestInputStream(body, digest)), received, failure);
+				if (!resp.isSuccess()) {
+					verbose("@|bold %s|@ isn't available on the mirror (%d), downloading it from GOG",
+							download.getProgressTitle(), resp.getStatus());
+					resp = null;
+
+				} else if (failure.get() == null) {
+					// the body is already consumed, so a bad copy can only fail the download rather than fall back
+					var expected = getExpectedMd5(download, url);
+					if (expected != null && !expected.equalsIgnoreCase(HexFormat.of().formatHex(digest.digest())))
+						throw new IOException("%s on the mirror doesn't match its checksum".formatted(download
+							.getProgressTitle()));
+				}
+			} catch (UnirestException e) {
+				if (received.get() > 0) // the handler has already consumed part of the body
+					throw new IOException("Lost connection to the mirror", e);
+				verbose("Couldn't download @|bold %s|@ from the mirror, downloading it from GOG: %s",
+						download.getProgressTitle(), e.getMessage());
+			}
+		}
+
+		if (resp == null) {
+			url = download.url();
+			resp = streamBody(get(url), monitor, transferred, handler, received, failure);
+		}
+
+		if (event.shouldCommit()) {
+			event.gameId = download.game().getId();
+			event.file = download.path().getFileName().toString();
+			event.host = host(url);
+			event.bytes = received.get();
+			event.status = resp.getStatus();
+			event.commit();
+		}
+
+		checkResponse(download.originalUrl(), resp);
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	@Nonnull
+	private static HttpResponse<Object> streamBody(@Nonnull GetRequest req, @Nullable ProgressBar monitor,
+												   @Nullable LongConsumer transferred, @Nonnull BodyHandler handler,
+												   @Nonnull AtomicLong received,
+												   @Nonnull AtomicReference<IOException> failure) {
+		return req.asObject(raw -> {
+			if (raw.getStatus() < 200 || raw.getStatus() >= 300)
+				return null;
+
+			var length = raw.getHeaders().getFirst("Content-Length");
+			if (monitor != null && !length.isEmpty())
+				monitor.maxHint(Long.parseLong(length));
+
+			try (var body = new CountingInputStream(raw.getContent(), n -> {
+				received.addAndGet(n);
+				if (monitor != null)
+					monitor.stepBy(n);
+				if (transferred != null)
+					transferred.accept(n);
+			})) {
+				handler.handle(body);
+			} catch (IOException e) {
+				failure.set(e);
+			}
+			return null;
+		});
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public byte[] downloadRange(@Nonnull GameDownload download, long from, long to) {
+		var resp = checkResponse(download.originalUrl(),
+								 get(download.url()).header("Range", "bytes=%d-%d".formatted(from, to)).asBytes());
+		if (resp.getStatus() != 206)
+			throw new RuntimeException("The server ignored the range request on " + download.originalUrl());
+
+		return resp.getBody();
+	}
+
+	@FunctionalInterface
+	public interface BodyHandler {
+
+		void handle(@Nonnull InputStream body) throws IOException;
 
-		if (!outputFile.renameTo(output.toFile()))
-			throw new IOException("Couldn't rename the part file");
 	}
 
 	@Nonnull
@@ -141,15 +412,31 @@ public class User {
 			unirest.config().followRedirects(false);
 
 			for (int i = 0; i < 10; i++) {
-				var newLocation = UNIREST_NO_REDIRECT.get(location)
-					.cookie("gog-al", this.token)
-					.asEmpty()
-					.getHeaders()
-					.all()
-					.stream()
-					.filter(h -> h.getName().equalsIgnoreCase("location"))
-					.findFirst()
-					.map(Header::getValue);
+				var event = new RedirectEvent();
+				event.begin();
+
+				var hop = location;
+				var resp = exchange(Kind.REDIRECT, hop, () -> {
+					var r = UNIREST_NO_REDIRECT.get(hop).cookie("gog-al", this.token).asEmpty();
+					var l = r.getHeaders()
+						.all()
+						.stream()
+						.filter(h -> h.getName().equalsIgnoreCase("location"))
+						.findFirst()
+						.map(Header::getValue)
+						.orElse(null);
+					return new Exchange(r.getStatus(), r.getStatusText(), l, null);
+				});
+				var newLocation = Optional.ofNullable(resp.location());
+
+				if (event.shouldCommit()) {
+					event.gameId = download.game().getId();
+					event.hop = i;
+					event.host = host(location);
+					event.locationHost = newLocation.map(Utilities::host).orElse(null);
+					event.status = resp.status();
+					event.commit();
+				}
 
 				if (newLocation.isPresent())
 					location = newLocation.get();
@@ -161,6 +448,30 @@ public class User {
 		throw new RuntimeException("Encountered a redirect loop on " + download.originalUrl());
 	}
 
+	@Nullable
+	public FileChecksum getChecksum(@Nonnull GameDownload download) {
+		var url = download.url();
+		var query = url.indexOf('?');
+		var checksumUrl = query == -1 ? url + ".xml" : url.substring(0, query) + ".xml" + url.substring(query);
+
+		var resp = exchange(Kind.CHECKSUM, checksumUrl, () -> {
+			var r = get(checksumUrl).asString();
+			return new Exchange(r.getStatus(), r.getStatusText(), null, r.getBody());
+		});
+		if (!resp.isSuccess() || resp.body() == null) {
+			verbose("No checksum is available for @|bold %s|@ (%d %s)", download.getProgressTitle(), resp.status(),
+					resp.statusText());
+			return null;
+		}
+
+		try {
+			return FileChecksum.fromXml(new ByteArrayInputStream(resp.body().getBytes(UTF_8)));
+		} catch (IOException | RuntimeException e) {
+			warn("Couldn't parse the checksum of @|bold %s|@: %s", download.getProgressTitle(), e.getMessage());
+			return null;
+		}
+	}
+
 	public GetRequest get(@Nonnull String url) {
 		return Unirest.get(url).cookie("gog-al", this.token);
 	}
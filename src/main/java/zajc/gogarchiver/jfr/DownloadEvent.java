@@ -0,0 +1,33 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.jfr;
+
+import jdk.jfr.*;
+
+@Name("zajc.gogarchiver.Download")
+@Label("Download")
+@Category("gogarchiver")
+@Description("Transfer of a single file, from the request to the last byte")
+public class DownloadEvent extends Event {
+
+	@Label("Game ID") public String gameId;
+	@Label("File") public String file;
+	@Label("Host") public String host;
+	@Label("Bytes") @DataAmount public long bytes;
+	@Label("Status") public int status;
+
+}
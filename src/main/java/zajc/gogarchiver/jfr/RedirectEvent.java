@@ -0,0 +1,33 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.jfr;
+
+import jdk.jfr.*;
+
+@Name("zajc.gogarchiver.Redirect")
+@Label("Redirect Hop")
+@Category("gogarchiver")
+@Description("A single hop while resolving a download URL")
+public class RedirectEvent extends Event {
+
+	@Label("Game ID") public String gameId;
+	@Label("Hop") public int hop;
+	@Label("Host") public String host;
+	@Label("Location Host") public String locationHost;
+	@Label("Status") public int status;
+
+}
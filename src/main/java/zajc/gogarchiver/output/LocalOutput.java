@@ -0,0 +1,53 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.output;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.function.LongConsumer;
+
+import javax.annotation.*;
+
+import me.tongfei.progressbar.ProgressBar;
+import zajc.gogarchiver.api.GameDownload;
+import zajc.gogarchiver.util.ArchiveFiles;
+
+public class LocalOutput implements OutputBackend {
+
+	@Nonnull private final Path root;
+
+	public LocalOutput(@Nonnull Path root) {
+		this.root = root;
+	}
+
+	@Override
+	public boolean exists(@Nonnull Path path) {
+		return Files.exists(this.root.resolve(path));
+	}
+
+	@Override
+	public void write(@Nonnull GameDownload download, @Nonnull Path path, @Nullable ProgressBar monitor,
+					  @Nullable LongConsumer transferred) throws IOException {
+		download.game().getUser().downloadTo(download, this.root.resolve(path), monitor, transferred);
+	}
+
+	@Override
+	public void place(@Nonnull Path source, @Nonnull Path target) throws IOException {
+		ArchiveFiles.place(this.root.resolve(source), this.root.resolve(target));
+	}
+
+}
@@ -0,0 +1,51 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.output;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.function.LongConsumer;
+
+import javax.annotation.*;
+
+import me.tongfei.progressbar.ProgressBar;
+import zajc.gogarchiver.api.GameDownload;
+
+public interface OutputBackend extends Closeable {
+
+	boolean exists(@Nonnull Path path) throws IOException;
+
+	void write(@Nonnull GameDownload download, @Nonnull Path path, @Nullable ProgressBar monitor,
+			   @Nullable LongConsumer transferred) throws IOException;
+
+	void place(@Nonnull Path source, @Nonnull Path target) throws IOException;
+
+	// waits until a written path has reached the output, for backends that finish writes in the background
+	default void flush(@Nonnull Path path) throws IOException {}
+
+	// picks up background writes that an earlier run didn't get to finish
+	default void resume() throws IOException {}
+
+	// waits for all background writes, and returns how many of them failed (each is already reported)
+	default int finish() throws IOException {
+		return 0;
+	}
+
+	@Override
+	default void close() throws IOException {}
+
+}
@@ -0,0 +1,442 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.output;
+
+import static java.lang.Math.min;
+import static java.net.http.HttpClient.Version.HTTP_1_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.ZoneOffset.UTC;
+import static java.util.Map.Entry.comparingByKey;
+import static java.util.stream.Collectors.joining;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.security.*;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+
+import javax.annotation.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import me.tongfei.progressbar.ProgressBar;
+import zajc.gogarchiver.api.GameDownload;
+import zajc.gogarchiver.api.User.BodyHandler;
+import zajc.gogarchiver.util.AsyncCache;
+
+// requests are built and signed by hand (AWS signature v4) with the JDK's HttpClient, because the signature must cover
+// the exact path and query string that are sent and Unirest re-encodes both
+public class S3Output implements OutputBackend {
+
+	private static final int PART_SIZE = 16 * 1024 * 1024; // gives 160 GiB with S3's limit of 10000 parts
+	private static final long COPY_PART_SIZE = 1024L * 1024L * 1024L;
+	private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(UTC);
+	private static final HexFormat HEX = HexFormat.of();
+
+	@Nonnull private final URI endpoint;
+	@Nonnull private final String region;
+	@Nonnull private final String bucket;
+	@Nonnull private final String prefix;
+	@Nonnull private final String accessKey;
+	@Nonnull private final String secretKey;
+	private final int partsInFlight;
+	private final int partSize;
+
+	private final HttpClient client = HttpClient.newBuilder().version(HTTP_1_1).build();
+	private final ExecutorService uploader = Executors.newCachedThreadPool(r -> {
+		var thread = new Thread(r, "s3-upload");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AsyncCache<String, Set<String>> listings = new AsyncCache<>();
+
+	public S3Output(@Nonnull URI endpoint, @Nonnull String region, @Nonnull String bucket, @Nonnull String prefix,
+					@Nonnull String accessKey, @Nonnull String secretKey, int partsInFlight) {
+		this(endpoint, region, bucket, prefix, accessKey, secretKey, partsInFlight, PART_SIZE);
+	}
+
+	S3Output(@Nonnull URI endpoint, @Nonnull String region, @Nonnull String bucket, @Nonnull String prefix,
+			 @Nonnull String accessKey, @Nonnull String secretKey, int partsInFlight, int partSize) {
+		this.endpoint = endpoint;
+		this.region = region;
+		this.bucket = bucket;
+		var strippedPrefix = prefix.replaceAll("^/+|/+$", "");
+		this.prefix = strippedPrefix.isEmpty() ? "" : strippedPrefix + "/";
+		this.accessKey = accessKey;
+		this.secretKey = secretKey;
+		this.partsInFlight = Math.max(1, partsInFlight);
+		this.partSize = partSize;
+	}
+
+	@Override
+	public boolean exists(@Nonnull Path path) throws IOException {
+		var key = key(path);
+		var directory = key.substring(0, key.lastIndexOf('/') + 1);
+
+		try { // listed once per directory, which is a lot cheaper than a HEAD per file
+			return this.listings.get(directory, d -> {
+				Set<String> listing = ConcurrentHashMap.newKeySet();
+				try {
+					listing.addAll(list(d));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return listing;
+			}).contains(key);
+
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@FunctionalInterface
+	interface Source {
+
+		void stream(@Nonnull BodyHandler handler) throws IOException;
+
+	}
+
+	@Override
+	public void write(@Nonnull GameDownload download, @Nonnull Path path, @Nullable ProgressBar monitor,
+					  @Nullable LongConsumer transferred) throws IOException {
+		upload(path, handler -> download.game().getUser().downloadStream(download, monitor, transferred, handler));
+	}
+
+	void upload(@Nonnull Path path, @Nonnull Source source) throws IOException {
+		var key = key(path);
+		var uploadId = initiateUpload(key);
+		try {
+			var etags = new ConcurrentSkipListMap<Integer, String>();
+			var parts = new ArrayList<Future<?>>();
+			var inFlight = new Semaphore(this.partsInFlight);
+
+			source.stream(body -> {
+				for (int partNumber = 1;; partNumber++) {
+					try {
+						inFlight.acquire(); // before reading, which bounds memory use to partsInFlight * partSize
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+
+					var part = body.readNBytes(this.partSize);
+					if (part.length == 0 && partNumber > 1) {
+						inFlight.release();
+						break;
+					}
+					failIfAnyFailed(parts);
+
+					var number = partNumber;
+					parts.add(this.uploader.submit(() -> {
+						try {
+							etags.put(number, uploadPart(key, uploadId, number, part));
+						} finally {
+							inFlight.release();
+						}
+						return null;
+					}));
+
+					if (part.length < this.partSize)
+						break;
+				}
+			});
+
+			for (var part : parts)
+				await(part);
+			completeUpload(key, uploadId, etags);
+
+		} catch (IOException | RuntimeException e) {
+			abortUpload(key, uploadId);
+			throw e;
+		}
+
+		invalidateListing(key);
+	}
+
+	@Override
+	public void place(@Nonnull Path source, @Nonnull Path target) throws IOException {
+		var sourceKey = key(source);
+		var targetKey = key(target);
+		var size = Long.parseLong(send("HEAD", sourceKey, Map.of(), Map.of(), new byte[0]).headers()
+			.firstValue("Content-Length")
+			.orElseThrow(() -> new IOException("No Content-Length for " + sourceKey)));
+
+		if (size == 0) {
+			send("PUT", targetKey, Map.of(), Map.of(), new byte[0]);
+			invalidateListing(targetKey);
+			return;
+		}
+
+		// server-side copy in parts, as a single copy is limited to 5 GiB
+		var uploadId = initiateUpload(targetKey);
+		try {
+			var etags = new TreeMap<Integer, String>();
+			var partNumber = 1;
+			for (long from = 0; from < size; from += COPY_PART_SIZE, partNumber++) {
+				var to = min(size, from + COPY_PART_SIZE) - 1;
+				var resp = send("PUT", targetKey, Map.of("partNumber", Integer.toString(partNumber), "uploadId", uploadId),
+								Map.of("x-amz-copy-source", "/" + this.bucket + "/" + encode(sourceKey, false),
+									   "x-amz-copy-source-range", "bytes=%d-%d".formatted(from, to)),
+								new byte[0]);
+				etags.put(partNumber, xmlValues(resp.body(), "ETag").get(0));
+			}
+			completeUpload(targetKey, uploadId, etags);
+
+		} catch (IOException | RuntimeException e) {
+			abortUpload(targetKey, uploadId);
+			throw e;
+		}
+
+		invalidateListing(targetKey);
+	}
+
+	@Nonnull
+	private List<String> list(@Nonnull String directory) throws IOException {
+		var keys = new ArrayList<String>();
+		String continuation = null;
+		do {
+			var query = new HashMap<String, String>();
+			query.put("list-type", "2");
+			query.put("prefix", directory);
+			if (continuation != null)
+				query.put("continuation-token", continuation);
+
+			var body = send("GET", null, query, Map.of(), new byte[0]).body();
+			keys.addAll(xmlValues(body, "Key"));
+			var next = xmlValues(body, "NextContinuationToken");
+			continuation = next.isEmpty() ? null : next.get(0);
+		} while (continuation != null);
+
+		return keys;
+	}
+
+	@Nonnull
+	private String initiateUpload(@Nonnull String key) throws IOException {
+		var body = send("POST", key, Map.of("uploads", ""), Map.of(), new byte[0]).body();
+		var ids = xmlValues(body, "UploadId");
+		if (ids.isEmpty())
+			throw new IOException("S3 didn't return an upload ID for " + key);
+		return ids.get(0);
+	}
+
+	@Nonnull
+	private String uploadPart(@Nonnull String key, @Nonnull String uploadId, int partNumber,
+							  @Nonnull byte[] part) throws IOException {
+		return send("PUT", key, Map.of("partNumber", Integer.toString(partNumber), "uploadId", uploadId), Map.of(),
+					part).headers().firstValue("ETag").orElseThrow(() -> new IOException("S3 didn't return an ETag"));
+	}
+
+	private void completeUpload(@Nonnull String key, @Nonnull String uploadId,
+								@Nonnull SortedMap<Integer, String> etags) throws IOException {
+		var xml = new StringBuilder("<CompleteMultipartUpload>");
+		etags.forEach((number, etag) -> xml.append("<Part><PartNumber>")
+			.append(number)
+			.append("</PartNumber><ETag>")
+			.append(etag.replace("&", "&amp;").replace("<", "&lt;"))
+			.append("</ETag></Part>"));
+		xml.append("</CompleteMultipartUpload>");
+
+		var body = send("POST", key, Map.of("uploadId", uploadId), Map.of(), xml.toString().getBytes(UTF_8)).body();
+		if (!xmlValues(body, "Code").isEmpty()) // errors can come with a 200 here
+			throw new IOException("S3 couldn't complete the upload of %s: %s".formatted(key, new String(body, UTF_8)));
+	}
+
+	private void abortUpload(@Nonnull String key, @Nonnull String uploadId) {
+		try {
+			send("DELETE", key, Map.of("uploadId", uploadId), Map.of(), new byte[0]);
+		} catch (IOException e) {
+			warn("Couldn't abort the upload of %s: %s", key, e.getMessage());
+		}
+	}
+
+	private void invalidateListing(@Nonnull String key) {
+		this.listings.remove(key.substring(0, key.lastIndexOf('/') + 1));
+	}
+
+	@Nonnull
+	private HttpResponse<byte[]> send(@Nonnull String method, @Nullable String key, @Nonnull Map<String, String> query,
+									  @Nonnull Map<String, String> headers, @Nonnull byte[] body) throws IOException {
+		var path = this.endpoint.getRawPath().replaceAll("/+$", "") + "/" + encode(this.bucket, true)
+			+ (key == null ? "" : "/" + encode(key, false));
+		var queryString = query.entrySet()
+			.stream()
+			.sorted(comparingByKey())
+			.map(e -> encode(e.getKey(), true) + "=" + encode(e.getValue(), true))
+			.collect(joining("&"));
+
+		var host = this.endpoint.getHost();
+		var port = this.endpoint.getPort();
+		var defaultPort = this.endpoint.getScheme().equals("https") ? 443 : 80;
+		if (port != -1 && port != defaultPort)
+			host += ":" + port;
+
+		var date = AMZ_DATE.format(Instant.now());
+		var payloadHash = HEX.formatHex(sha256(body));
+		var signed = new TreeMap<String, String>();
+		headers.forEach((k, v) -> signed.put(k.toLowerCase(), v.strip()));
+		signed.put("host", host);
+		signed.put("x-amz-content-sha256", payloadHash);
+		signed.put("x-amz-date", date);
+
+		var uri = URI.create(this.endpoint.getScheme() + "://" + host + path +
+			(queryString.isEmpty() ? "" : "?" + queryString));
+		var request = HttpRequest.newBuilder(uri)
+			.method(method, body.length == 0 ? BodyPublishers.noBody() : BodyPublishers.ofByteArray(body))
+			.header("Authorization", authorization(method, path, queryString, signed, payloadHash, date, this.region,
+												   this.accessKey, this.secretKey));
+		signed.forEach((k, v) -> {
+			if (!k.equals("host"))
+				request.header(k, v);
+		});
+
+		HttpResponse<byte[]> resp;
+		try {
+			resp = this.client.send(request.build(), BodyHandlers.ofByteArray());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during an S3 request");
+		}
+
+		if (resp.statusCode() / 100 != 2)
+			throw new IOException("S3 %s on %s failed: %d %s".formatted(method, key == null ? this.bucket : key,
+																		  resp.statusCode(),
+																		  new String(resp.body(), UTF_8)));
+		return resp;
+	}
+
+	@Nonnull
+	static String authorization(@Nonnull String method, @Nonnull String path, @Nonnull String query,
+								@Nonnull SortedMap<String, String> headers, @Nonnull String payloadHash,
+								@Nonnull String date, @Nonnull String region, @Nonnull String accessKey,
+								@Nonnull String secretKey) {
+		// headers must be lowercase and trimmed, and path and query already encoded the way they're sent
+		var signedHeaders = String.join(";", headers.keySet());
+		var canonicalRequest = String.join("\n", method, path, query,
+										   headers.entrySet()
+											   .stream()
+											   .map(e -> e.getKey() + ":" + e.getValue() + "\n")
+											   .collect(joining()),
+										   signedHeaders, payloadHash);
+		var scope = date.substring(0, 8) + "/" + region + "/s3/aws4_request";
+		var stringToSign = String.join("\n", "AWS4-HMAC-SHA256", date, scope,
+									   HEX.formatHex(sha256(canonicalRequest.getBytes(UTF_8))));
+
+		var signingKey = hmac(("AWS4" + secretKey).getBytes(UTF_8), date.substring(0, 8));
+		signingKey = hmac(signingKey, region);
+		signingKey = hmac(signingKey, "s3");
+		signingKey = hmac(signingKey, "aws4_request");
+		var signature = HEX.formatHex(hmac(signingKey, stringToSign));
+
+		return "AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=%s, Signature=%s".formatted(accessKey, scope,
+																							signedHeaders, signature);
+	}
+
+	@Nonnull
+	private String key(@Nonnull Path path) {
+		var key = new StringJoiner("/", this.prefix, "");
+		path.forEach(p -> key.add(p.toString()));
+		return key.toString();
+	}
+
+	@Nonnull
+	private static String encode(@Nonnull String value, boolean encodeSlash) {
+		var encoded = new StringBuilder();
+		for (var b : value.getBytes(UTF_8)) {
+			var c = (char) (b & 0xFF);
+			if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+				|| c == '.' || c == '~' || c == '/' && !encodeSlash)
+				encoded.append(c);
+			else
+				encoded.append('%').append(HEX.withUpperCase().toHexDigits(b));
+		}
+		return encoded.toString();
+	}
+
+	@Nonnull
+	private static List<String> xmlValues(@Nonnull byte[] xml, @Nonnull String tag) throws IOException {
+		if (xml.length == 0)
+			return List.of();
+
+		try {
+			var elements = newDocumentBuilder().parse(new ByteArrayInputStream(xml)).getElementsByTagName(tag);
+			var values = new ArrayList<String>(elements.getLength());
+			for (int i = 0; i < elements.getLength(); i++)
+				values.add(elements.item(i).getTextContent());
+			return values;
+
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Couldn't parse an S3 response", e);
+		}
+	}
+
+	private static void failIfAnyFailed(@Nonnull List<Future<?>> parts) throws IOException {
+		for (var part : parts) {
+			if (part.isDone())
+				await(part);
+		}
+	}
+
+	private static void await(@Nonnull Future<?> part) throws IOException {
+		try {
+			part.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe)
+				throw ioe;
+			throw new IOException("Couldn't upload a part", e.getCause());
+		}
+	}
+
+	@Nonnull
+	private static byte[] sha256(@Nonnull byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JRE must implement SHA-256
+		}
+	}
+
+	@Nonnull
+	private static byte[] hmac(@Nonnull byte[] key, @Nonnull String data) {
+		try {
+			var mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac.doFinal(data.getBytes(UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e); // every JRE must implement HmacSHA256
+		}
+	}
+
+	@Override
+	public void close() {
+		this.uploader.shutdownNow();
+	}
+
+}
@@ -0,0 +1,240 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.output;
+
+import static java.lang.Long.MAX_VALUE;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static zajc.gogarchiver.util.ArchiveFiles.*;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+import javax.annotation.*;
+
+import me.tongfei.progressbar.ProgressBar;
+import zajc.gogarchiver.api.GameDownload;
+import zajc.gogarchiver.util.ArchiveFiles;
+
+public class StagedOutput implements OutputBackend {
+
+	@Nonnull private final Path root;
+	@Nonnull private final Path staging;
+	@Nonnull private final Budget budget;
+	@Nonnull private final ExecutorService migrations;
+	@Nonnull private final ConcurrentMap<Path, Future<?>> pending = new ConcurrentHashMap<>();
+	@Nonnull private final AtomicInteger failed = new AtomicInteger();
+
+	public StagedOutput(@Nonnull Path root, @Nonnull Path staging, long limit, int migrationThreads) {
+		this.root = root;
+		this.staging = staging;
+		this.budget = new Budget(limit);
+		this.migrations = newFixedThreadPool(migrationThreads);
+	}
+
+	@Override
+	public boolean exists(@Nonnull Path path) {
+		// files left in the staging directory by an earlier run are complete, and are moved by resume()
+		return Files.exists(this.root.resolve(path)) || Files.exists(this.staging.resolve(path));
+	}
+
+	@Override
+	public void write(@Nonnull GameDownload download, @Nonnull Path path, @Nullable ProgressBar monitor,
+					  @Nullable LongConsumer transferred) throws IOException {
+		// the download lands on the (fast) staging disk and is moved to the (slow) archive in the background, while
+		// the staging disk's usage is kept under the limit by making downloads wait for migrations to free it up
+		var estimate = download.size() < 0 ? 0 : download.size() + download.size() / 20; // sizes are rounded
+		this.budget.acquire(estimate);
+
+		var staged = this.staging.resolve(path);
+		long size;
+		try {
+			download.game().getUser().downloadTo(download, staged, monitor, transferred);
+			size = Files.size(staged);
+		} catch (IOException | RuntimeException e) {
+			this.budget.release(estimate);
+			throw e;
+		}
+		this.budget.adjust(size - estimate);
+		migrateLater(download, path, staged, size);
+	}
+
+	@Override
+	@SuppressWarnings("null")
+	public void resume() throws IOException {
+		if (!Files.isDirectory(this.staging))
+			return;
+
+		try (var files = Files.walk(this.staging)) {
+			for (var staged : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+				var path = this.staging.relativize(staged);
+				if (staged.getFileName().toString().startsWith(".") || this.pending.containsKey(path))
+					continue; // part files of interrupted downloads, which are picked up by downloading them again
+
+				verbose("Moving @|bold %s|@, which an earlier run left in the staging directory, to the archive", path);
+				var size = Files.size(staged);
+				this.budget.adjust(size);
+				migrateLater(null, path, staged, size);
+			}
+		}
+	}
+
+	private void migrateLater(@Nullable GameDownload download, @Nonnull Path path, @Nonnull Path staged, long size) {
+		this.pending.put(path, this.migrations.submit(() -> {
+			try {
+				migrate(download, staged, this.root.resolve(path));
+				this.pending.remove(path);
+			} catch (IOException | RuntimeException e) {
+				this.failed.incrementAndGet();
+				this.budget.strand(size); // the file stays in the staging directory, so its space stays taken
+				warn("Couldn't move @|bold %s|@ to the archive, it's left in %s: %s", path, staged, e.getMessage());
+				throw e;
+			}
+			this.budget.release(size);
+			return null;
+		}));
+	}
+
+	private static void migrate(@Nullable GameDownload download, @Nonnull Path staged,
+								@Nonnull Path target) throws IOException {
+		var parent = target.getParent();
+		if (parent != null)
+			createDirectories(parent);
+
+		var temp = partFile(target);
+		Files.copy(staged, temp, REPLACE_EXISTING, COPY_ATTRIBUTES);
+
+		// the copy is read back from the archive and compared with GOG's checksum, or with the staged file if there
+		// isn't one (or the download isn't known, as with files left over from an earlier run), before the staged file
+		// is deleted
+		var checksum = download == null ? null : download.checksum();
+		String expected;
+		if (checksum != null) {
+			expected = checksum.md5();
+		} else {
+			try (var channel = FileChannel.open(staged, READ)) {
+				expected = md5(channel, 0, channel.size());
+			}
+		}
+
+		String actual;
+		try (var channel = FileChannel.open(temp, READ)) {
+			actual = md5(channel, 0, channel.size());
+		}
+
+		if (!expected.equalsIgnoreCase(actual)) {
+			Files.deleteIfExists(temp);
+			throw new IOException("Checksum mismatch after copying (expected %s, got %s)".formatted(expected, actual));
+		}
+
+		commit(temp, target);
+		Files.delete(staged);
+	}
+
+	@Override
+	public void flush(@Nonnull Path path) throws IOException {
+		var migration = this.pending.get(path);
+		if (migration == null)
+			return;
+
+		try {
+			migration.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException("Couldn't move %s to the archive".formatted(path), e.getCause());
+		}
+	}
+
+	@Override
+	public void place(@Nonnull Path source, @Nonnull Path target) throws IOException {
+		flush(source);
+		ArchiveFiles.place(this.root.resolve(source), this.root.resolve(target));
+	}
+
+	@Override
+	public int finish() throws IOException {
+		this.migrations.shutdown();
+		try {
+			this.migrations.awaitTermination(MAX_VALUE, NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		return this.failed.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish(); // failures are reported by the run through finish()
+	}
+
+	private static class Budget {
+
+		private final long limit;
+		private long used = 0;
+		private long stranded = 0; // by failed migrations, which no migration is going to free up
+
+		public Budget(long limit) {
+			this.limit = limit;
+		}
+
+		public synchronized void acquire(long bytes) throws IOException {
+			// a single download larger than the limit is still let through once the staging area is empty
+			while (this.used > 0 && this.used + bytes > this.limit) {
+				if (this.used == this.stranded)
+					throw new IOException("The staging directory is full of files that couldn't be moved to the archive");
+
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			this.used += bytes;
+		}
+
+		public synchronized void adjust(long bytes) {
+			this.used += bytes;
+			if (bytes < 0)
+				notifyAll();
+		}
+
+		public synchronized void release(long bytes) {
+			this.used -= bytes;
+			notifyAll();
+		}
+
+		public synchronized void strand(long bytes) {
+			this.stranded += bytes;
+			notifyAll(); // waiting downloads may now have nothing left to wait for
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.lang.Math.*;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zajc.gogarchiver.util.Utilities.verbose;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongConsumer;
+
+public class AdaptiveConcurrency implements LongConsumer, Closeable {
+
+	private static final long SAMPLE_INTERVAL = 5; // seconds
+	private static final double GAIN_RATIO = 1.05;
+	private static final double COLLAPSE_RATIO = 0.5;
+	private static final int HOLD_SAMPLES = 6;
+	private static final double MIB = 1024d * 1024d;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final LimitSemaphore permits;
+	private final LongAdder transferred = new LongAdder();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final ScheduledExecutorService sampler = newSingleThreadScheduledExecutor(r -> {
+		var thread = new Thread(r, "adaptive-concurrency");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// only touched by the sampler thread
+	private int limit;
+	private double lastRate = 0;
+	private double lastStreamRate = 0;
+	private boolean probing = false;
+	private int hold = 0;
+
+	public AdaptiveConcurrency(int minLimit, int maxLimit) {
+		this.minLimit = max(1, minLimit);
+		this.maxLimit = max(this.minLimit, maxLimit);
+		this.limit = this.minLimit;
+		this.permits = new LimitSemaphore(this.limit);
+
+		verbose("Download concurrency starts at @|bold %d|@ (bounds %d-%d)", this.limit, this.minLimit,
+				this.maxLimit);
+		this.sampler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, SECONDS);
+	}
+
+	public int getMaxLimit() {
+		return this.maxLimit;
+	}
+
+	public void acquire() throws InterruptedException {
+		this.permits.acquire();
+		this.active.incrementAndGet();
+	}
+
+	public void release() {
+		this.active.decrementAndGet();
+		this.permits.release();
+	}
+
+	public void reportError() {
+		this.errors.incrementAndGet();
+	}
+
+	@Override
+	public void accept(long bytes) {
+		this.transferred.add(bytes);
+	}
+
+	private void sample() {
+		var rate = this.transferred.sumThenReset() / (double) SAMPLE_INTERVAL;
+		var failed = this.errors.getAndSet(0);
+		var streams = this.active.get();
+		if (streams == 0 && failed == 0)
+			return; // idle, e.g. waiting for the last downloads to be picked up
+
+		var streamRate = streams == 0 ? 0 : rate / streams;
+		if (failed > 0) {
+			setLimit(this.limit / 2, "%d failed downloads".formatted(failed), rate);
+			this.hold = HOLD_SAMPLES;
+
+		} else if (this.probing && rate < this.lastRate * GAIN_RATIO) {
+			// a probe on a saturated link splits the same throughput over one more stream, so the per-stream rate
+			// dropping then is expected and only undoes the probe
+			setLimit(this.limit - 1, "no throughput gain", rate);
+			this.hold = HOLD_SAMPLES;
+
+		} else if (!this.probing && this.lastStreamRate > 0 && streamRate < this.lastStreamRate * COLLAPSE_RATIO) {
+			setLimit(this.limit / 2, "per-stream rate collapsed", rate);
+			this.hold = HOLD_SAMPLES;
+
+		} else if (this.hold > 0) {
+			this.hold--;
+
+		} else if (streams >= this.limit && this.limit < this.maxLimit) {
+			setLimit(this.limit + 1, "probing", rate);
+			this.probing = true;
+			this.lastRate = rate;
+			this.lastStreamRate = streamRate;
+			return;
+		}
+
+		this.probing = false;
+		this.lastRate = rate;
+		this.lastStreamRate = streamRate;
+	}
+
+	private void setLimit(int newLimit, String reason, double rate) {
+		newLimit = min(this.maxLimit, max(this.minLimit, newLimit));
+		if (newLimit == this.limit)
+			return;
+
+		verbose("Download concurrency @|bold %d|@ -> @|bold %d|@ (%s, %.2f MiB/s)", this.limit, newLimit, reason,
+				rate / MIB);
+
+		if (newLimit > this.limit)
+			this.permits.release(newLimit - this.limit);
+		else
+			this.permits.reducePermits(this.limit - newLimit);
+		this.limit = newLimit;
+	}
+
+	@Override
+	public void close() {
+		this.sampler.shutdownNow();
+	}
+
+	private static class LimitSemaphore extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		public LimitSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		@Override
+		public void reducePermits(int reduction) { // NOSONAR just exposing it
+			super.reducePermits(reduction);
+		}
+
+	}
+
+}
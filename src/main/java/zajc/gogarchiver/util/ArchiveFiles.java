@@ -0,0 +1,77 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import javax.annotation.Nonnull;
+
+public class ArchiveFiles {
+
+	private static final DirectorySync DIRECTORY_SYNC = new DirectorySync();
+
+	@Nonnull
+	public static Path partFile(@Nonnull Path output) {
+		return output.resolveSibling("." + output.getFileName() + ".part");
+	}
+
+	public static void commit(@Nonnull Path temp, @Nonnull Path output) throws IOException {
+		// make sure that whatever ends up under the final name is complete, even after a power loss
+		try (var channel = FileChannel.open(temp, WRITE)) {
+			channel.force(true);
+		}
+
+		try {
+			Files.move(temp, output, ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, output, REPLACE_EXISTING);
+		}
+
+		var parent = output.toAbsolutePath().getParent();
+		if (parent != null)
+			DIRECTORY_SYNC.sync(parent);
+	}
+
+	public static void place(@Nonnull Path source, @Nonnull Path target) throws IOException {
+		var parent = target.toAbsolutePath().getParent();
+		if (parent != null)
+			createDirectories(parent);
+
+		try {
+			Files.createLink(target, source);
+			if (parent != null)
+				DIRECTORY_SYNC.sync(parent);
+			return;
+
+		} catch (UnsupportedOperationException | FileSystemException e) { // eg. different file systems
+			Utilities.verbose("Couldn't link %s to %s, copying it instead: %s", target, source, e.getMessage());
+		}
+
+		var temp = partFile(target);
+		Files.copy(source, temp, REPLACE_EXISTING, COPY_ATTRIBUTES);
+		commit(temp, target);
+	}
+
+	private ArchiveFiles() {}
+
+}
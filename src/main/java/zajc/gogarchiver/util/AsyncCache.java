@@ -0,0 +1,75 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+public class AsyncCache<K, V> {
+
+	private final ConcurrentMap<K, CompletableFuture<V>> values = new ConcurrentHashMap<>();
+
+	public V get(@Nonnull K key, @Nonnull Function<K, V> loader) {
+		var future = this.values.get(key);
+		if (future == null) {
+			// the loader runs outside of the map so no lock is held while it waits on the network, and concurrent
+			// callers for the same key wait on the same future instead of loading it again
+			var created = new CompletableFuture<V>();
+			future = this.values.putIfAbsent(key, created);
+			if (future == null)
+				return load(key, loader, created);
+		}
+
+		return join(future);
+	}
+
+	public void remove(@Nonnull K key) {
+		this.values.remove(key);
+	}
+
+	private V load(@Nonnull K key, @Nonnull Function<K, V> loader, @Nonnull CompletableFuture<V> future) {
+		V value;
+		try {
+			value = loader.apply(key);
+		} catch (Throwable e) { // checked exceptions can be sneaky-thrown through the loader too
+			this.values.remove(key, future); // failures aren't cached, the next caller tries again
+			future.completeExceptionally(e);
+			throw e;
+		}
+
+		future.complete(value);
+		return value;
+	}
+
+	static <V> V join(@Nonnull CompletableFuture<V> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() == null)
+				throw e;
+			throw AsyncCache.<RuntimeException>rethrow(e.getCause());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E extends Throwable> E rethrow(@Nonnull Throwable t) throws E {
+		throw (E) t; // the loader's own exception, checked or not, is what its callers expect
+	}
+
+}
@@ -0,0 +1,57 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import java.io.*;
+import java.util.function.LongConsumer;
+
+import javax.annotation.Nonnull;
+
+public class CountingInputStream extends FilterInputStream {
+
+	@Nonnull private final LongConsumer counter;
+
+	public CountingInputStream(@Nonnull InputStream in, @Nonnull LongConsumer counter) {
+		super(in);
+		this.counter = counter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		var b = super.read();
+		if (b != -1)
+			this.counter.accept(1);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		var read = super.read(b, off, len);
+		if (read > 0)
+			this.counter.accept(read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		var skipped = super.skip(n);
+		if (skipped > 0)
+			this.counter.accept(skipped);
+		return skipped;
+	}
+
+}
@@ -0,0 +1,102 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.io.File.separatorChar;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+public class DirectorySync {
+
+	private static final boolean SUPPORTED = separatorChar == '/'; // directories can't be opened on windows
+
+	private final Object lock = new Object();
+	@Nullable private Batch pending;
+	private boolean syncing = false;
+
+	private static class Batch {
+
+		private final Set<Path> directories = new HashSet<>();
+		private final CompletableFuture<Void> synced = new CompletableFuture<>();
+
+	}
+
+	public void sync(@Nonnull Path directory) throws IOException {
+		if (!SUPPORTED)
+			return;
+
+		Batch batch;
+		boolean leader;
+		synchronized (this.lock) {
+			if (this.pending == null)
+				this.pending = new Batch();
+			batch = this.pending;
+			batch.directories.add(directory.toAbsolutePath().normalize());
+
+			leader = !this.syncing;
+			if (leader)
+				this.syncing = true;
+		}
+
+		// whoever finds the syncer idle syncs batches until there's nothing left, the rest wait for theirs
+		if (leader)
+			syncPending();
+
+		try {
+			batch.synced.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while syncing " + directory, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Couldn't sync " + directory, e.getCause());
+		}
+	}
+
+	private void syncPending() {
+		while (true) {
+			Batch batch;
+			synchronized (this.lock) {
+				batch = this.pending;
+				this.pending = null;
+				if (batch == null) {
+					this.syncing = false;
+					return;
+				}
+			}
+
+			try {
+				for (var directory : batch.directories) {
+					try (var channel = FileChannel.open(directory, READ)) {
+						channel.force(true);
+					}
+				}
+				batch.synced.complete(null);
+
+			} catch (IOException | RuntimeException e) {
+				batch.synced.completeExceptionally(e);
+			}
+		}
+	}
+
+}
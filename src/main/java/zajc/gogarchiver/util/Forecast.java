@@ -0,0 +1,125 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.lang.Math.*;
+import static java.lang.System.nanoTime;
+import static java.time.format.DateTimeFormatter.ofPattern;
+import static java.time.temporal.ChronoUnit.NANOS;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import javax.annotation.*;
+
+import me.tongfei.progressbar.ProgressBar;
+
+public class Forecast implements LongConsumer, Closeable {
+
+	private static final long UPDATE_INTERVAL = 5; // seconds
+	private static final double WARMUP = 120; // seconds until the rate seen in this run fully replaces the history
+
+	private final long total;
+	private final long predicted;
+	@Nullable private final ThroughputHistory history;
+	@Nullable private final ProgressBar progress;
+	private final long start = nanoTime();
+	private final LongAdder transferred = new LongAdder();
+	private final ScheduledExecutorService updater = newSingleThreadScheduledExecutor(r -> {
+		var thread = new Thread(r, "forecast");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public Forecast(long total, long predicted, @Nullable ThroughputHistory history, @Nullable ProgressBar progress) {
+		this.total = total;
+		this.predicted = predicted;
+		this.history = history;
+		this.progress = progress;
+
+		if (progress != null)
+			this.updater.scheduleAtFixedRate(this::update, 0, UPDATE_INTERVAL, SECONDS);
+	}
+
+	@Override
+	public void accept(long bytes) {
+		this.transferred.add(bytes);
+	}
+
+	public void record(@Nonnull String host, int concurrency, long bytes, long nanos) {
+		if (this.history == null)
+			return;
+
+		try {
+			this.history.record(host, concurrency, bytes, nanos);
+		} catch (IOException e) {
+			verbose("Couldn't record throughput history: %s", e.getMessage());
+		}
+	}
+
+	private void update() {
+		var progress = this.progress;
+		if (progress == null)
+			return;
+
+		var elapsed = (nanoTime() - this.start) / (double) SECONDS.toNanos(1);
+		var done = this.transferred.sum();
+		var remaining = max(0, this.total - done);
+
+		// the prediction from history is trusted at first, and handed over to what's actually measured as it comes in
+		var observed = elapsed > 0 ? done / elapsed : 0;
+		var historical = this.predicted > 0 ? this.total / (this.predicted / (double) SECONDS.toNanos(1)) : 0;
+		var weight = min(1, elapsed / WARMUP);
+		double rate;
+		if (historical <= 0)
+			rate = observed;
+		else if (observed <= 0)
+			rate = historical;
+		else
+			rate = weight * observed + (1 - weight) * historical;
+
+		progress.stepTo(min(done, this.total));
+		if (rate <= 0)
+			progress.setExtraMessage("");
+		else
+			progress.setExtraMessage(describe((long) (remaining / rate * SECONDS.toNanos(1))));
+	}
+
+	@Nonnull
+	public static String describe(long nanos) {
+		var finish = LocalDateTime.now().plus(nanos, NANOS);
+		var pattern = finish.toLocalDate().equals(LocalDateTime.now().toLocalDate()) ? "HH:mm" : "EEE HH:mm";
+		return "about %s, done around %s".formatted(formatDuration(nanos), finish.format(ofPattern(pattern)));
+	}
+
+	@Override
+	public void close() {
+		this.updater.shutdownNow();
+		if (this.progress != null) {
+			this.progress.stepTo(this.progress.getMax());
+			this.progress.setExtraMessage("");
+			this.progress.close();
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zajc.gogarchiver.util.Utilities.verbose;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+public class HostScheduler {
+
+	public static final int FINISHED = -1;
+	public static final int BUSY = -2;
+
+	private static final double SMOOTHING = 0.3;
+	private static final double MIB = 1024d * 1024d;
+
+	private final int perHostLimit;
+	private final Map<String, Host> hosts = new LinkedHashMap<>();
+	private final Host[] hostOf;
+	private int remaining = 0;
+
+	private static class Host {
+
+		@Nonnull private final String name;
+		@Nonnull private final Deque<Integer> queue = new ArrayDeque<>();
+		private int active = 0;
+		private int completed = 0;
+		private long bytes = 0;
+		private double rate = -1; // bytes per second of a single stream, smoothed over finished downloads
+
+		public Host(@Nonnull String name) {
+			this.name = name;
+		}
+
+	}
+
+	public HostScheduler(int size, int perHostLimit) {
+		this.hostOf = new Host[size];
+		this.perHostLimit = perHostLimit;
+	}
+
+	public synchronized void add(int index, @Nonnull String host) {
+		var h = this.hosts.computeIfAbsent(host, Host::new);
+		h.queue.add(index);
+		this.hostOf[index] = h;
+		this.remaining++;
+	}
+
+	public synchronized int poll() {
+		// downloads are taken in plan order within a host, but the host is the one that has the fewest streams for
+		// its measured speed, so threads spread over CDN nodes instead of piling onto one of them
+		if (this.remaining == 0)
+			return FINISHED;
+
+		var host = pickHost();
+		if (host == null)
+			return BUSY; // every host with queued downloads is at its limit
+
+		host.active++;
+		this.remaining--;
+		return host.queue.poll();
+	}
+
+	public synchronized void awaitHost() throws InterruptedException {
+		while (this.remaining > 0 && pickHost() == null)
+			wait();
+	}
+
+	public synchronized void resolved(int index, @Nonnull String host) {
+		// downloads whose host wasn't known (or has changed) since planning are moved to where they're really going.
+		// This can briefly put a host over --per-host-threads, as the download is already running
+		var from = this.hostOf[index];
+		if (from.name.equals(host))
+			return;
+
+		var to = this.hosts.computeIfAbsent(host, Host::new);
+		from.active--;
+		to.active++;
+		this.hostOf[index] = to;
+		notifyAll();
+	}
+
+	public synchronized int getActive() {
+		return this.hosts.values().stream().mapToInt(h -> h.active).sum();
+	}
+
+	@Nullable
+	private Host pickHost() {
+		var fastest = this.hosts.values().stream().mapToDouble(h -> h.rate).max().orElse(-1);
+		var assumed = fastest > 0 ? fastest : 1; // unmeasured hosts are assumed to be as fast as the fastest one
+
+		Host best = null;
+		var bestLoad = Double.MAX_VALUE;
+		for (var host : this.hosts.values()) {
+			if (host.queue.isEmpty() || this.perHostLimit > 0 && host.active >= this.perHostLimit)
+				continue;
+
+			var load = (host.active + 1) / (host.rate > 0 ? host.rate : assumed);
+			if (load < bestLoad) {
+				best = host;
+				bestLoad = load;
+			}
+		}
+
+		return best;
+	}
+
+	public synchronized void finished(int index, long bytes, long nanos) {
+		var host = this.hostOf[index];
+		host.active--;
+		host.completed++;
+		host.bytes += bytes;
+		if (bytes > 0 && nanos > 0) {
+			var rate = bytes / (nanos / (double) SECONDS.toNanos(1));
+			host.rate = host.rate < 0 ? rate : host.rate * (1 - SMOOTHING) + rate * SMOOTHING;
+		}
+
+		notifyAll();
+	}
+
+	public synchronized void logStatistics() {
+		for (var host : this.hosts.values()) {
+			if (host.completed > 0)
+				verbose("@|bold %s|@: %d downloads, %.1f MiB, %.2f MiB/s per stream", host.name, host.completed,
+						host.bytes / MIB, max(0, host.rate) / MIB);
+		}
+	}
+
+}
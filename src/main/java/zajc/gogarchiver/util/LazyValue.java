@@ -16,27 +16,51 @@
  */
 package zajc.gogarchiver.util;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
 import javax.annotation.*;
 
 public class LazyValue<T> {
 
-	@Nullable private volatile T value;
+	private final AtomicReference<CompletableFuture<T>> value = new AtomicReference<>();
 
 	public T get(@Nonnull Supplier<T> generator) {
-		if (this.value != null)
-			return this.value;
-		synchronized (this) {
-			if (this.value != null) // double checked locking
-				return this.value;
-			else
-				return this.value = generator.get();
+		var future = this.value.get();
+		if (future == null) {
+			var created = new CompletableFuture<T>();
+			if (this.value.compareAndSet(null, created)) {
+				T generated;
+				try {
+					generated = generator.get();
+				} catch (Throwable e) { // checked exceptions can be sneaky-thrown through the generator too
+					this.value.compareAndSet(created, null);
+					created.completeExceptionally(e);
+					throw e;
+				}
+
+				created.complete(generated);
+				return generated;
+			}
+
+			future = this.value.get();
+			if (future == null) // unset in the meantime
+				return get(generator);
 		}
+
+		return AsyncCache.join(future);
+	}
+
+	@Nullable
+	public T peek() {
+		// the value if it's already there, without generating it
+		var future = this.value.get();
+		return future != null && future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
 	}
 
-	public synchronized void unset() {
-		this.value = null;
+	public void unset() {
+		this.value.set(null);
 	}
 
 }
@@ -0,0 +1,193 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.lang.System.err;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.TimeUnit.*;
+import static picocli.CommandLine.Help.defaultColorScheme;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.*;
+
+import kong.unirest.core.json.JSONObject;
+import picocli.CommandLine.Help.Ansi;
+import picocli.CommandLine.Help.ColorScheme;
+
+public final class Log {
+
+	public enum Level {
+
+		VERBOSE("@|faint [V]|@ "),
+		INFO(""),
+		WARN("@|yellow [W]|@ "),
+		ERROR("@|bold,red [E]|@ "),
+		RAW("");
+
+		@Nonnull private final String prefix;
+
+		Level(@Nonnull String prefix) {
+			this.prefix = prefix;
+		}
+
+	}
+
+	private static final long FLUSH_TIMEOUT = 5; // seconds
+	private static final long IDLE_PARK = MILLISECONDS.toNanos(100);
+
+	private static final Queue<Entry> QUEUE = new ConcurrentLinkedQueue<>();
+	private static final Thread WRITER = new Thread(Log::write, "log-writer");
+
+	private static volatile boolean enableVerbose = false;
+	private static volatile ColorScheme colorScheme = defaultColorScheme(Ansi.AUTO);
+	@Nullable private static volatile Writer jsonSink;
+
+	static {
+		WRITER.setDaemon(true);
+		WRITER.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+	}
+
+	private record Entry(@Nonnull Level level, long timestamp, @Nonnull String format, @Nullable Object[] args,
+		@Nullable CountDownLatch flushed) {
+
+		@Nonnull
+		public String message() {
+			return this.args == null ? this.format : this.format.formatted(this.args);
+		}
+
+	}
+
+	public static void setVerbose(boolean verbose) {
+		enableVerbose = verbose;
+	}
+
+	public static void setColorMode(@Nonnull Ansi ansi) {
+		colorScheme = defaultColorScheme(ansi);
+	}
+
+	public static void setJsonSink(@Nonnull Path path) throws IOException {
+		jsonSink = Files.newBufferedWriter(path, UTF_8, CREATE, APPEND, WRITE);
+	}
+
+	public static boolean isEnabled(@Nonnull Level level) {
+		return level != Level.VERBOSE || enableVerbose || jsonSink != null;
+	}
+
+	public static void log(@Nonnull Level level, @Nonnull String format, @Nullable Object... args) {
+		if (isEnabled(level))
+			enqueue(new Entry(level, System.currentTimeMillis(), format, args, null));
+	}
+
+	public static void flush() {
+		var latch = new CountDownLatch(1);
+		enqueue(new Entry(Level.RAW, 0, "", null, latch));
+		try {
+			latch.await(FLUSH_TIMEOUT, SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void enqueue(@Nonnull Entry entry) {
+		QUEUE.offer(entry);
+		LockSupport.unpark(WRITER);
+	}
+
+	private static void write() {
+		var console = new StringBuilder();
+		while (true) { // NOSONAR runs for the lifetime of the process
+			var entry = QUEUE.poll();
+			if (entry == null) {
+				LockSupport.parkNanos(IDLE_PARK);
+				continue;
+			}
+
+			// drain everything that's queued up so the console lock is only taken once per batch
+			for (; entry != null; entry = QUEUE.poll()) {
+				if (entry.flushed() != null) {
+					writeOut(console);
+					entry.flushed().countDown();
+					continue;
+				}
+
+				try {
+					writeEntry(entry, console);
+				} catch (RuntimeException e) { // a bad format string shouldn't take down the writer
+					console.append("Couldn't format log message ").append(entry.format()).append(": ").append(e);
+					console.append(System.lineSeparator());
+				}
+			}
+			writeOut(console);
+		}
+	}
+
+	private static void writeEntry(@Nonnull Entry entry, @Nonnull StringBuilder console) {
+		var level = entry.level();
+		var message = entry.message();
+
+		if (level == Level.RAW) {
+			console.append(colorScheme.text(message));
+			return;
+		}
+
+		if (level != Level.VERBOSE || enableVerbose)
+			console.append(colorScheme.text(level.prefix + message)).append(System.lineSeparator());
+
+		var sink = jsonSink;
+		if (sink != null) {
+			var json = new JSONObject().put("time", Instant.ofEpochMilli(entry.timestamp()).toString())
+				.put("level", level.name().toLowerCase())
+				.put("message", Ansi.OFF.string(message));
+			try {
+				sink.write(json.toString());
+				sink.write('\n');
+			} catch (IOException e) {
+				jsonSink = null;
+				console.append("Couldn't write to the JSON log, disabling it: ").append(e);
+				console.append(System.lineSeparator());
+			}
+		}
+	}
+
+	private static void writeOut(@Nonnull StringBuilder console) {
+		if (!console.isEmpty()) {
+			err.print(console);
+			err.flush();
+			console.setLength(0);
+		}
+
+		var sink = jsonSink;
+		if (sink != null) {
+			try {
+				sink.flush();
+			} catch (IOException e) {
+				jsonSink = null;
+			}
+		}
+	}
+
+	private Log() {}
+
+}
@@ -0,0 +1,167 @@
+//SPDX-License-Identifier: GPL-3.0
+/*
+ * gogarchiver-ng, an archival tool for GOG.com
+ * Copyright (C) 2024 Marko Zajc
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this
+ * program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package zajc.gogarchiver.util;
+
+import static java.lang.Math.*;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zajc.gogarchiver.util.ArchiveFiles.*;
+import static zajc.gogarchiver.util.Utilities.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.function.Predicate;
+
+import javax.annotation.*;
+
+public class ThroughputHistory {
+
+	public static final String FILE = ".gogarchiver-throughput";
+
+	private static final int MAX_SAMPLES = 10_000;
+
+	@Nonnull private final Path file;
+	@Nonnull private final List<Sample> samples;
+	private boolean compact;
+
+	// one finished download: its CDN host, the hour of day it finished in, and how many downloads were running with it
+	private record Sample(long time, int hour, @Nonnull String host, int concurrency, long bytes, long nanos) {
+
+		@Nonnull
+		public String toLine() {
+			return "%d\t%d\t%s\t%d\t%d\t%d%n".formatted(this.time, this.hour, this.host, this.concurrency, this.bytes,
+														 this.nanos);
+		}
+
+	}
+
+	private ThroughputHistory(@Nonnull Path file, @Nonnull List<Sample> samples, boolean compact) {
+		this.file = file;
+		this.samples = samples;
+		this.compact = compact;
+	}
+
+	@Nonnull
+	public static ThroughputHistory load(@Nonnull Path file) throws IOException {
+		var samples = new ArrayList<Sample>();
+		if (Files.exists(file)) {
+			try (var lines = Files.lines(file, UTF_8)) {
+				lines.map(l -> l.split("\t", 6)).filter(l -> l.length == 6).forEach(l -> {
+					try {
+						samples.add(new Sample(Long.parseLong(l[0]), Integer.parseInt(l[1]), l[2], Integer.parseInt(l[3]),
+											   Long.parseLong(l[4]), Long.parseLong(l[5])));
+					} catch (NumberFormatException e) {
+						verbose("Ignoring a malformed throughput history line");
+					}
+				});
+			}
+		}
+
+		// only recent samples are kept, so the file doesn't grow forever. It's rewritten on the first record() rather
+		// than here, so runs that don't download anything (like --dry-run) leave it alone
+		var compact = samples.size() > MAX_SAMPLES * 2;
+		if (compact)
+			samples.subList(0, samples.size() - MAX_SAMPLES).clear();
+
+		return new ThroughputHistory(file, samples, compact);
+	}
+
+	public synchronized void record(@Nonnull String host, int concurrency, long bytes, long nanos) throws IOException {
+		var sample = new Sample(currentTimeMillis(), LocalTime.now().getHour(), host, concurrency, bytes, nanos);
+		this.samples.add(sample);
+		if (this.compact) {
+			var compacted = new StringBuilder();
+			this.samples.forEach(s -> compacted.append(s.toLine()));
+			var temp = partFile(this.file);
+			Files.writeString(temp, compacted, UTF_8);
+			commit(temp, this.file);
+			this.compact = false;
+
+		} else {
+			Files.writeString(this.file, sample.toLine(), UTF_8, CREATE, APPEND, WRITE);
+		}
+	}
+
+	public synchronized double getRate(@Nonnull String host, int hour, int concurrency) {
+		// the closest match there's history for, from the same host at the same hour and concurrency to anything
+		return rate(s -> s.host().equals(host) && s.hour() == hour && s.concurrency() == concurrency,
+					s -> s.host().equals(host) && s.concurrency() == concurrency,
+					s -> s.host().equals(host) && hourDistance(s.hour(), hour) <= 1,
+					s -> s.host().equals(host),
+					s -> s.concurrency() == concurrency,
+					s -> true);
+	}
+
+	private static int hourDistance(int a, int b) {
+		var distance = abs(a - b);
+		return min(distance, 24 - distance);
+	}
+
+	@SafeVarargs
+	private double rate(@Nonnull Predicate<Sample>... filters) {
+		for (var filter : filters) {
+			long bytes = 0;
+			long nanos = 0;
+			for (var sample : this.samples) {
+				if (filter.test(sample)) {
+					bytes += sample.bytes();
+					nanos += sample.nanos();
+				}
+			}
+
+			if (bytes > 0 && nanos > 0)
+				return bytes / (nanos / (double) SECONDS.toNanos(1));
+		}
+
+		return -1;
+	}
+
+	public synchronized int getBestConcurrency(int min, int max) {
+		// the concurrency level that moved the most data per second overall, for --threads auto
+		var best = max;
+		var bestRate = -1d;
+		for (int concurrency = min; concurrency <= max; concurrency++) {
+			var c = concurrency;
+			var rate = rate(s -> s.concurrency() == c);
+			if (rate > 0 && rate * c > bestRate) {
+				best = c;
+				bestRate = rate * c;
+			}
+		}
+
+		return best;
+	}
+
+	public long predict(@Nonnull Map<String, Long> bytesByHost, int concurrency, int hour) {
+		// per-stream rates of each host add up to the total time spent downloading, which is shared between the
+		// streams running at once
+		double streamSeconds = 0;
+		for (var entry : bytesByHost.entrySet()) {
+			var rate = getRate(entry.getKey(), hour, concurrency);
+			if (rate <= 0)
+				return -1;
+			streamSeconds += entry.getValue() / rate;
+		}
+
+		return (long) (streamSeconds / concurrency * SECONDS.toNanos(1));
+	}
+
+}
@@ -16,45 +16,54 @@
  */
 package zajc.gogarchiver.util;
 
-import static java.lang.System.err;
-import static picocli.CommandLine.Help.defaultColorScheme;
-
+import static java.lang.Math.min;
+import static zajc.gogarchiver.util.Log.Level.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.*;
+import java.time.Duration;
+import java.util.HexFormat;
 import java.util.stream.*;
 
 import javax.annotation.*;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.*;
 
 import kong.unirest.core.HttpResponse;
 import kong.unirest.core.json.JSONArray;
-import picocli.CommandLine.Help.*;
+import picocli.CommandLine.Help.Ansi;
 
 public class Utilities {
 
-	private static boolean enableVerbose = false;
-	private static ColorScheme colorScheme;
+	private static final int HASH_BUFFER_SIZE = 8 * 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+		ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
 
 	public static void setVerbose(boolean verbose) {
-		enableVerbose = verbose;
+		Log.setVerbose(verbose);
 	}
 
 	public static void setColorMode(@Nonnull Ansi ansi) {
-		colorScheme = defaultColorScheme(ansi);
+		Log.setColorMode(ansi);
 	}
 
 	public static void println(@Nullable Object text) {
-		err.println(colorScheme.text(String.valueOf(text)));
+		Log.log(INFO, "%s", text);
 	}
 
 	public static void printf(@Nonnull String format, @Nonnull Object... args) {
-		err.print(colorScheme.text(format.formatted(args)));
+		Log.log(RAW, format, args);
 	}
 
 	public static void warn(@Nonnull String text, @Nonnull Object... args) {
-		println("@|yellow [W]|@ " + text.formatted(args));
+		Log.log(WARN, text, args);
 	}
 
 	public static void verbose(@Nonnull String text, @Nonnull Object... args) {
-		if (enableVerbose)
-			println("@|faint [V]|@ " + text.formatted(args));
+		Log.log(VERBOSE, text, args);
 	}
 
 	public static <T> HttpResponse<T> checkResponse(String url, HttpResponse<T> resp) {
@@ -65,14 +74,89 @@ public class Utilities {
 		return resp;
 	}
 
+	@Nullable
+	public static String host(@Nonnull String url) {
+		try {
+			return URI.create(url).getHost();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
 	@Nonnull
 	@SuppressWarnings("null")
 	public static Stream<Object> stream(JSONArray array) {
 		return StreamSupport.stream(array.spliterator(), false);
 	}
 
+	@Nonnull
+	public static String md5(@Nonnull ByteBuffer data) {
+		var digest = md5Digest();
+		digest.update(data);
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	@Nonnull
+	public static String md5(@Nonnull FileChannel channel, long position, long length) throws IOException {
+		var digest = md5Digest();
+		var buffer = HASH_BUFFER.get();
+		var end = position + length;
+		while (position < end) {
+			buffer.clear().limit((int) min(buffer.capacity(), end - position));
+			var read = channel.read(buffer, position);
+			if (read < 0)
+				break;
+
+			position += read;
+			digest.update(buffer.flip());
+		}
+
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	@Nonnull
+	public static MessageDigest md5Digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JRE must implement MD5
+		}
+	}
+
+	@Nonnull
+	public static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+		// XML comes from the network, so DTDs and with them external entities are refused
+		var factory = DocumentBuilderFactory.newInstance();
+		factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		factory.setXIncludeAware(false);
+		factory.setExpandEntityReferences(false);
+		return factory.newDocumentBuilder();
+	}
+
+	@Nonnull
+	public static String formatSize(long bytes) {
+		if (bytes < 0)
+			return "?";
+		else if (bytes < 1024)
+			return bytes + " B";
+
+		var exponent = min(4, (63 - Long.numberOfLeadingZeros(bytes)) / 10);
+		return "%.1f %siB".formatted(bytes / (double) (1L << (exponent * 10)), "KMGT".charAt(exponent - 1));
+	}
+
+	@Nonnull
+	@SuppressWarnings("null")
+	public static String formatDuration(long nanos) {
+		var duration = Duration.ofNanos(nanos);
+		if (duration.toHours() > 0)
+			return "%dh %02dm".formatted(duration.toHours(), duration.toMinutesPart());
+		else
+			return "%dm %02ds".formatted(duration.toMinutes(), duration.toSecondsPart());
+	}
+
 	public static void cursorUp() {
-		err.print("\u001b[1A");
+		Log.log(RAW, "\u001b[1A");
 	}
 
 	private Utilities() {}